@@ -0,0 +1,93 @@
+package bgu.spl.net.impl.tftp;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Decoding one packet of each opcode, a byte at a time and from a buffer. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncoderDecoderBenchmark {
+
+  @Param({ "RRQ", "WRQ", "DATA", "ACK", "ERROR", "DIRQ", "LOGRQ", "DELRQ", "BCAST", "DISC", "OPTIONS" })
+  public String packet;
+
+  private byte[] wire;
+  private ByteBuffer buffer;
+  private TftpEncoderDecoder decoder;
+
+  @Setup
+  public void setup() {
+    wire = wire(packet);
+    buffer = ByteBuffer.wrap(wire);
+    decoder = new TftpEncoderDecoder();
+  }
+
+  @Benchmark
+  public byte[] decodeNextByte() {
+    byte[] message = null;
+    for (byte b : wire) {
+      message = decoder.decodeNextByte(b);
+    }
+    decoder.release(message);
+    return message;
+  }
+
+  @Benchmark
+  public byte[] decodeNext() {
+    buffer.clear();
+    byte[] message = decoder.decodeNext(buffer);
+    decoder.release(message);
+    return message;
+  }
+
+  // the packet as a client or the server sends it
+  static byte[] wire(String name) {
+    switch (name) {
+      case "RRQ":
+        return TftpPacket.request(TftpPacket.RRQ, "lemon.jpg");
+      case "WRQ":
+        return TftpPacket.request(TftpPacket.WRQ, "lemon.jpg");
+      case "DATA":
+        byte[] data = new byte[TftpPacket.DATA_HEADER_LENGTH + TftpProtocol.DEFAULT_BLOCK_SIZE];
+        return TftpPacket.writeDataHeader(data, TftpProtocol.DEFAULT_BLOCK_SIZE, 1);
+      case "ACK":
+        return TftpPacket.ack(1);
+      case "ERROR":
+        return TftpPacket.error(1, "File not found");
+      case "DIRQ":
+        return TftpPacket.opcode(TftpPacket.DIRQ);
+      case "LOGRQ":
+        return TftpPacket.request(TftpPacket.LOGRQ, "alice");
+      case "DELRQ":
+        return TftpPacket.request(TftpPacket.DELRQ, "lemon.jpg");
+      case "BCAST":
+        return TftpPacket.bcast(true, "lemon.jpg");
+      case "DISC":
+        return TftpPacket.opcode(TftpPacket.DISC);
+      case "OPTIONS":
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put(TftpOptions.WINDOW_SIZE, "8");
+        options.put(TftpOptions.BLOCK_SIZE, "1428");
+        return TftpOptions.packet(options);
+      default:
+        throw new IllegalArgumentException(name);
+    }
+  }
+}
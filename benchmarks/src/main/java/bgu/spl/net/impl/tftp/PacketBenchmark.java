@@ -0,0 +1,66 @@
+package bgu.spl.net.impl.tftp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building packets and reading their fields with TftpPacket, which replaced
+ * the concatenateArrays and splitByteArray helpers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+
+  private final TftpPacket.View view = new TftpPacket.View();
+  private final byte[] header = new byte[TftpPacket.DATA_HEADER_LENGTH];
+  private byte[] data;
+  private byte[] rrq;
+  private int block;
+
+  @Setup
+  public void setup() {
+    TftpEncoderDecoder decoder = new TftpEncoderDecoder();
+    data = decoder.decodeNext(ByteBuffer.wrap(EncoderDecoderBenchmark.wire("DATA")));
+    rrq = decoder.decodeNext(ByteBuffer.wrap(EncoderDecoderBenchmark.wire("RRQ")));
+  }
+
+  @Benchmark
+  public byte[] error() {
+    return TftpPacket.error(1, "File not found");
+  }
+
+  @Benchmark
+  public byte[] bcast() {
+    return TftpPacket.bcast(true, "lemon.jpg");
+  }
+
+  @Benchmark
+  public byte[] writeDataHeader() {
+    return TftpPacket.writeDataHeader(header, TftpProtocol.DEFAULT_BLOCK_SIZE, ++block);
+  }
+
+  @Benchmark
+  public int readData() {
+    view.wrap(data);
+    return view.opcode() + view.block() + view.dataLength() + view.payloadLength();
+  }
+
+  @Benchmark
+  public String readRrq() {
+    return view.wrap(rrq).name();
+  }
+}
@@ -0,0 +1,151 @@
+package bgu.spl.net.impl.tftp;
+
+import bgu.spl.net.srv.ConnectionsImpl;
+import bgu.spl.net.srv.StubConnectionHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TftpProtocol.process of the packets of a transfer, for a connection whose
+ * handler only counts what it is given. An ACK sends the next block of a
+ * cached file, a DATA block is written to the staging file. Starting the next
+ * transfer once one is done, publishing and deleting an upload included, is
+ * done in a per-invocation setup so it isn't measured. The protocol's console
+ * output is dropped while the benchmark runs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+  private static final int BLOCK_SIZE = TftpProtocol.DEFAULT_BLOCK_SIZE;
+  private static final int FILE_BLOCKS = 8192; // of the file each RRQ reads
+  private static final int UPLOAD_BLOCKS = 1024; // written by each WRQ
+
+  /** A logged in connection with its own files directory */
+  @State(Scope.Thread)
+  public abstract static class Connection {
+
+    TftpProtocol protocol;
+    Path dir;
+    private PrintStream out;
+    private final TftpEncoderDecoder decoder = new TftpEncoderDecoder();
+
+    @Setup
+    public void setup() throws IOException {
+      out = System.out;
+      System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+      dir = Files.createTempDirectory("tftp-benchmark");
+      Path files = Files.createDirectory(dir.resolve("Flies"));
+      // not a whole number of blocks, so the last block is short
+      Files.write(files.resolve("read.bin"), new byte[FILE_BLOCKS * BLOCK_SIZE - 1]);
+      ConnectionsImpl<byte[]> connections = new ConnectionsImpl<>();
+      connections.start();
+      HotFileCache cache = new HotFileCache(64 << 20);
+      BlobStore blobs = new BlobStore(files, dir.resolve("blobs"));
+      protocol = new TftpProtocol(
+          new FileIndex(files, name -> false),
+          cache,
+          new MappedFiles(0),
+          new StagingArea(dir.resolve("staging")),
+          blobs,
+          new TftpMetrics(connections, cache, blobs));
+      protocol.basePath = files.toString();
+      connections.connect(1, new StubConnectionHandler<>());
+      protocol.start(1, connections);
+      process(TftpPacket.request(TftpPacket.LOGRQ, "benchmark"));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+      System.setOut(out);
+      try (Stream<Path> paths = Files.walk(dir)) {
+        for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+          Files.deleteIfExists(path);
+        }
+      }
+    }
+
+    // processes the packet the way a handler does, decoded and released after
+    void process(byte[] wire) {
+      byte[] message = decoder.decodeNext(ByteBuffer.wrap(wire));
+      protocol.process(message);
+      decoder.release(message);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Reader extends Connection {
+
+    final byte[] ack = new byte[4];
+    int acked;
+
+    @Setup
+    public void startRead() {
+      acked = 0;
+      process(TftpPacket.request(TftpPacket.RRQ, "read.bin"));
+    }
+
+    // the ACK of the last block ended the RRQ
+    @Setup(Level.Invocation)
+    public void restartRead() {
+      if (acked == FILE_BLOCKS) {
+        startRead();
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Writer extends Connection {
+
+    final byte[] data = new byte[TftpPacket.DATA_HEADER_LENGTH + BLOCK_SIZE];
+    int written;
+
+    @Setup
+    public void startWrite() {
+      written = 0;
+      process(TftpPacket.request(TftpPacket.WRQ, "write.bin"));
+    }
+
+    // an empty block ends the upload, then the file is deleted for the next WRQ
+    @Setup(Level.Invocation)
+    public void restartWrite() {
+      if (written == UPLOAD_BLOCKS) {
+        process(TftpPacket.dataHeader(0, written + 1));
+        process(TftpPacket.request(TftpPacket.DELRQ, "write.bin"));
+        startWrite();
+      }
+    }
+  }
+
+  @Benchmark
+  public void ack(Reader reader) {
+    reader.process(TftpPacket.writeAck(reader.ack, ++reader.acked));
+  }
+
+  @Benchmark
+  public void data(Writer writer) {
+    writer.process(TftpPacket.writeDataHeader(writer.data, BLOCK_SIZE, ++writer.written));
+  }
+}
@@ -0,0 +1,72 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ConnectionsImpl.send and bCast called by several threads at once, as the
+ * workers of the reactor or the threads of the clients do. -t changes the
+ * number of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ConnectionsBenchmark {
+
+  // broadcasts are keyed like the server's, by one of a few file names
+  private static final int BROADCAST_KEYS = 16;
+
+  @Param({ "64" })
+  public int connectionCount;
+
+  private ConnectionsImpl<byte[]> connections;
+  private final byte[] message = { 0, 4, 0, 0 };
+  private final String[] keys = new String[BROADCAST_KEYS];
+
+  @State(Scope.Thread)
+  public static class Caller {
+
+    int next;
+  }
+
+  @Setup
+  public void setup() {
+    connections = new ConnectionsImpl<>();
+    connections.start();
+    for (int id = 0; id < connectionCount; id++) {
+      connections.connect(id, new StubConnectionHandler<>());
+      connections.logIn("user" + id, id);
+    }
+    for (int i = 0; i < BROADCAST_KEYS; i++) {
+      keys[i] = "file" + i;
+    }
+  }
+
+  @Benchmark
+  public boolean send(Caller caller) {
+    caller.next = (caller.next + 1) % connectionCount;
+    return connections.send(caller.next, message);
+  }
+
+  // only the submit is timed, the broadcaster delivers in the background
+  @Benchmark
+  public void bCast(Caller caller) {
+    caller.next = (caller.next + 1) % connectionCount;
+    connections.bCast(caller.next, keys[caller.next % BROADCAST_KEYS], message);
+  }
+}
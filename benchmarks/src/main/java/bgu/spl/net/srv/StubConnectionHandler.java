@@ -0,0 +1,28 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A handler without a socket, it only counts what it was given to send. */
+public class StubConnectionHandler<T> implements ConnectionHandler<T> {
+
+  public final LongAdder sent = new LongAdder();
+
+  @Override
+  public void send(T msg) {
+    sent.increment();
+  }
+
+  @Override
+  public void sendFile(T header, SharedFile file, long position, long count) {
+    sent.increment();
+  }
+
+  @Override
+  public void sendBuffer(T header, ByteBuffer payload) {
+    sent.increment();
+  }
+
+  @Override
+  public void close() {}
+}
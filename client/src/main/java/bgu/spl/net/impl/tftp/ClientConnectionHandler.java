@@ -4,6 +4,10 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class ClientConnectionHandler {
@@ -12,12 +16,50 @@ public class ClientConnectionHandler {
   public boolean waitingForResponse;
   public short recentRequestOpCode;
   public String workingFileName;
-  public int writeCounter;
+  public String userName; // of the last LOGRQ, to log in again after reconnecting
   public ConcurrentLinkedQueue<byte[]> ansQueue = new ConcurrentLinkedQueue<>();
-  public ConcurrentLinkedQueue<byte[]> sendQueue = new ConcurrentLinkedQueue<>();
+  // windowsize asked for with every RRQ/WRQ, 1 sends no options (-Dtftp.windowsize)
+  public int requestedWindowSize = Integer.getInteger("tftp.windowsize", 1);
+  public int windowSize = 1; // negotiated for the current transfer
+  // blksize asked for with every RRQ/WRQ, 512 sends no option (-Dtftp.blksize)
+  public int requestedBlockSize = Integer.getInteger("tftp.blksize", 512);
+  public int blockSize = 512; // negotiated for the current transfer
+  // codecs asked for with every RRQ/WRQ, e.g. deflate, none if unset (-Dtftp.compress)
+  public String requestedCompression = System.getProperty("tftp.compress");
+  public String compression; // negotiated for the current transfer, null if none
+  public Compression.Decoder receiveDecoder; // RRQ: decompresses the blocks received
+  // a compressed RRQ is stopped once it decompresses to more, 0 for no limit (-Dtftp.maxInflatedBytes)
+  public long maxInflatedBytes = Long.getLong("tftp.maxInflatedBytes", 1L << 30);
+  public Compression.Encoder sendEncoder; // WRQ: compresses the blocks to send
+  // a WRQ sends the file's hash first, the server may have its content (-Dtftp.sendHash)
+  public boolean sendHash = Boolean.getBoolean("tftp.sendHash");
+  public FileOutputStream receiveStream; // RRQ: the file being received
+  public int lastReceived; // RRQ/DIRQ: last DATA block received in order
+  public int lastAckSent; // RRQ/DIRQ: last DATA block acknowledged
+  public FileChannel sendChannel; // WRQ: the file being sent
+  public long sendBlocks; // WRQ: number of DATA blocks of the file
+  public int lastAcked; // WRQ: highest block the server acknowledged
+  public int nextBlock; // WRQ: next block to send
+  public long transferOffset; // RRQ/WRQ: the byte of the file DATA block 1 starts at
+  // a WRQ asks the server to keep the upload if the connection drops, which
+  // keeps its name reserved until it is resumed or expires (-Dtftp.resume)
+  public boolean resumeUploads = Boolean.getBoolean("tftp.resume");
+  public String uploadToken; // WRQ: the token to resume the upload with, null if none
+  public short interrupted; // RRQ or WRQ cut off by the connection, resumed after reconnecting
+  public int reconnects; // attempts since the transfer was cut off
+  // attempts to reconnect and resume a cut off transfer (-Dtftp.reconnectAttempts)
+  public int maxReconnects = Integer.getInteger("tftp.reconnectAttempts", 8);
+  // reused for every packet sent by the listener thread, they are copied
+  // into the output buffer as they are written
+  public final byte[] ackPacket = new byte[4];
+  public final byte[] dataHeader = new byte[TftpPacket.DATA_HEADER_LENGTH];
+  public ByteBuffer sendChunk = ByteBuffer.allocate(0); // WRQ: a block read from the file
   TftpEncoderDecoder encdec;
-  BufferedInputStream in;
-  BufferedOutputStream out;
+  final TftpPacket.View packet = new TftpPacket.View(); // the answer being handled
+  // replaced when reconnecting
+  volatile Socket socket;
+  volatile BufferedInputStream in;
+  volatile BufferedOutputStream out;
 
   public ClientConnectionHandler(
     BufferedInputStream inBuff,
@@ -27,7 +69,6 @@ public class ClientConnectionHandler {
     waitingForResponse = false;
     recentRequestOpCode = 0;
     workingFileName = "";
-    writeCounter = 0;
     in = inBuff;
     out = outBuff;
     encdec = new TftpEncoderDecoder();
@@ -0,0 +1,226 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the DATA payloads of a transfer, asked for with the
+ * "compress" option: a comma separated list of codecs, the one chosen is in
+ * the OACK. With a codec the DATA blocks carry the file as one compressed
+ * stream, cut in blocks of blksize as usual, so the last block is still the
+ * short one. The offset of a resumed transfer is counted in bytes of the file.
+ *
+ * Only deflate, built into the JDK, is supported; another codec needs a case
+ * in choose and in the Encoder and Decoder constructors.
+ *
+ * The client has the same file, both must stay identical, SharedSourcesTest
+ * of the server checks it.
+ */
+public class Compression {
+
+  public static final String DEFLATE = "deflate";
+
+  private static final int SAMPLE_SIZE = 64 * 1024;
+
+  /** reads the file being compressed, like FileChannel.read(dst, position) */
+  @FunctionalInterface
+  public interface Source {
+    int read(ByteBuffer dst, long position) throws IOException;
+  }
+
+  /** @return the first codec of the list that is supported, or null */
+  public static String choose(String requested) {
+    for (String codec : requested.split(",")) {
+      if (codec.trim().equalsIgnoreCase(DEFLATE)) {
+        return DEFLATE;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Compresses a sample from position, the start of the file to send, and
+   * says if it shrinks by a tenth at least. A jpg, mp3 or zip doesn't, so it
+   * is sent as is instead of spending CPU on it.
+   */
+  public static boolean worthCompressing(Source source, long position, long end) throws IOException {
+    ByteBuffer sample = ByteBuffer.allocate((int) Math.min(SAMPLE_SIZE, end - position));
+    while (sample.hasRemaining() && source.read(sample, position + sample.position()) > 0) {}
+    if (sample.position() == 0) {
+      return false;
+    }
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(sample.array(), 0, sample.position());
+      deflater.finish();
+      byte[] out = new byte[sample.position()];
+      long compressed = 0;
+      while (!deflater.finished()) {
+        compressed += deflater.deflate(out);
+      }
+      return compressed < sample.position() * 0.9;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Compresses the bytes [start, end) of a file as the blocks are asked for,
+   * a window at a time. The blocks after the last acknowledged one are kept,
+   * so a window can be sent again.
+   */
+  public static class Encoder {
+
+    private final Deflater deflater;
+    private final Source source;
+    private final long end;
+    private final int blockSize;
+    private long position; // next byte of the file to compress
+    private final ByteBuffer input = ByteBuffer.allocate(SAMPLE_SIZE);
+    private byte[] output; // the compressed stream from outputStart
+    private long outputStart;
+    private int outputLength;
+    private long compressed;
+
+    public Encoder(String codec, Source source, long start, long end, int blockSize) {
+      this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+      this.source = source;
+      this.position = start;
+      this.end = end;
+      this.blockSize = blockSize;
+      this.output = new byte[Math.max(SAMPLE_SIZE, 2 * blockSize)];
+    }
+
+    /**
+     * The payload of DATA block number block, the blocks from the one after
+     * the last acknowledged are available. It is valid until the next call,
+     * shorter than blockSize for the last block.
+     */
+    public ByteBuffer block(int block) throws IOException {
+      long from = (block - 1L) * blockSize;
+      long to = from + blockSize;
+      while (!deflater.finished() && outputStart + outputLength < to) {
+        if (deflater.needsInput() && position < end) {
+          input.clear();
+          input.limit((int) Math.min(input.capacity(), end - position));
+          int read = source.read(input, position);
+          if (read <= 0) {
+            throw new IOException("The file ended early");
+          }
+          position += read;
+          deflater.setInput(input.array(), 0, read);
+        } else if (deflater.needsInput()) {
+          deflater.finish();
+        }
+        if (outputLength == output.length) {
+          output = Arrays.copyOf(output, output.length * 2);
+        }
+        int n = deflater.deflate(output, outputLength, output.length - outputLength);
+        outputLength += n;
+        compressed += n;
+      }
+      int offset = (int) (from - outputStart);
+      int size = Math.max(0, Math.min(blockSize, outputLength - offset));
+      return ByteBuffer.wrap(output, offset, size);
+    }
+
+    /** drops the blocks up to block, they won't be sent again */
+    public void acknowledged(int block) {
+      long upTo = (long) block * blockSize;
+      int drop = (int) Math.min(outputLength, upTo - outputStart);
+      if (drop <= 0) {
+        return;
+      }
+      System.arraycopy(output, drop, output, 0, outputLength - drop);
+      outputLength -= drop;
+      outputStart += drop;
+    }
+
+    /** bytes of the file compressed so far */
+    public long fileBytes() {
+      return deflater.getBytesRead();
+    }
+
+    /** bytes of the compressed stream so far */
+    public long compressedBytes() {
+      return compressed;
+    }
+
+    public void end() {
+      deflater.end();
+    }
+  }
+
+  /** thrown by a Decoder whose stream holds more than its limit */
+  public static class LimitExceededException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public LimitExceededException(long maxBytes) {
+      super("The decompressed data is over " + maxBytes + " bytes");
+    }
+  }
+
+  /**
+   * Decompresses the DATA payloads of a transfer as they arrive. A few KB of
+   * deflate can hold GBs of zeros, so the bytes it writes are bounded.
+   */
+  public static class Decoder {
+
+    private final Inflater inflater;
+    private final byte[] buffer = new byte[SAMPLE_SIZE];
+    private final long maxBytes;
+    private long compressed;
+    private long written;
+
+    /** @param maxBytes the most bytes it writes, 0 or less for no limit */
+    public Decoder(String codec, long maxBytes) {
+      this.inflater = new Inflater();
+      this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+    }
+
+    /**
+     * decompresses a payload and writes what it holds of the file to out
+     * @throws LimitExceededException if that would go over the limit, what is
+     * over it isn't written
+     */
+    public void write(byte[] payload, int offset, int length, OutputStream out) throws IOException {
+      compressed += length;
+      inflater.setInput(payload, offset, length);
+      try {
+        int n;
+        while (!inflater.finished() && (n = inflater.inflate(buffer)) > 0) {
+          if (n > maxBytes - written) {
+            throw new LimitExceededException(maxBytes);
+          }
+          out.write(buffer, 0, n);
+          written += n;
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Bad compressed data", e);
+      }
+    }
+
+    /** whether the whole compressed stream arrived */
+    public boolean finished() {
+      return inflater.finished();
+    }
+
+    public long fileBytes() {
+      return written;
+    }
+
+    public long compressedBytes() {
+      return compressed;
+    }
+
+    public void end() {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,445 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Headless load for capacity planning: N sessions, each logged in with a name
+ * of its own, run a random mix of RRQ, WRQ, DIRQ and DELRQ against a server
+ * and a report of the throughput, latency percentiles and errors of each
+ * operation is printed at the end. Every session reads and deletes only the
+ * files it uploaded, and deletes what is left before it disconnects.
+ *
+ * usage: LoadGenerator [host] [port], tuned with system properties:
+ * -Dload.sessions=8 sessions at once
+ * -Dload.seconds=30 how long they run
+ * -Dload.mix=RRQ:50,WRQ:30,DIRQ:15,DELRQ:5 weights of the operations
+ * -Dload.sizes=1k:50,64k:40,1m:10 weights of the sizes of uploaded files
+ * -Dload.seed=1 seeds the random choices, so a run can be repeated
+ * -Dtftp.windowsize and -Dtftp.blksize as for TftpClient
+ */
+public class LoadGenerator {
+
+  enum Op {
+    RRQ,
+    WRQ,
+    DIRQ,
+    DELRQ,
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    String host = args.length > 0 ? args[0] : "127.0.0.1";
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : 7777;
+    int sessionCount = Integer.getInteger("load.sessions", 8);
+    long seconds = Long.getLong("load.seconds", 30);
+    Weighted<Op> mix = Weighted.parse(System.getProperty("load.mix", "RRQ:50,WRQ:30,DIRQ:15,DELRQ:5"),
+        Op::valueOf);
+    Weighted<Integer> sizes = Weighted.parse(System.getProperty("load.sizes", "1k:50,64k:40,1m:10"),
+        LoadGenerator::parseSize);
+    long seed = Long.getLong("load.seed", System.nanoTime());
+    int windowSize = Integer.getInteger("tftp.windowsize", 1);
+    int blockSize = Integer.getInteger("tftp.blksize", 512);
+
+    // the content of every upload is a prefix of the same random bytes,
+    // stamped with its file name so the server stores each one, see upload
+    byte[] content = new byte[sizes.values.stream().mapToInt(Integer::intValue).max().orElse(0)];
+    new Random(seed).nextBytes(content);
+    String prefix = "load-" + ProcessHandle.current().pid() + "-";
+    long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+    List<Session> sessions = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < sessionCount; i++) {
+      Session session = new Session(host, port, prefix + i, mix, sizes, content.clone(), windowSize, blockSize,
+          new Random(seed + i), deadline);
+      sessions.add(session);
+      threads.add(Thread.ofPlatform().name(session.name).start(session));
+    }
+    long start = System.nanoTime();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    report(sessions, (System.nanoTime() - start) / 1e9);
+  }
+
+  private static void report(List<Session> sessions, double seconds) {
+    EnumMap<Op, Samples> total = new EnumMap<>(Op.class);
+    long bytes = 0;
+    int failed = 0;
+    for (Session session : sessions) {
+      for (Op op : Op.values()) {
+        total.computeIfAbsent(op, o -> new Samples()).addAll(session.samples.get(op));
+      }
+      bytes += session.bytes;
+      if (session.failure != null) {
+        failed++;
+        System.out.println(session.name + " failed: " + session.failure);
+      }
+    }
+    System.out.printf("%-6s %8s %7s %9s %9s %9s %9s%n", "op", "count", "errors", "ops/s", "p50 ms", "p99 ms",
+        "p999 ms");
+    long count = 0;
+    for (Op op : Op.values()) {
+      Samples samples = total.get(op);
+      samples.sort();
+      count += samples.size;
+      System.out.printf(Locale.ROOT, "%-6s %8d %7d %9.1f %9.3f %9.3f %9.3f%n", op, samples.size, samples.errors,
+          samples.size / seconds, samples.percentileMillis(50), samples.percentileMillis(99),
+          samples.percentileMillis(99.9));
+    }
+    System.out.printf(Locale.ROOT, "%d sessions (%d failed) in %.1f s: %.1f ops/s, %.2f MB/s of file data%n",
+        sessions.size(), failed, seconds, count / seconds, bytes / seconds / (1 << 20));
+  }
+
+  // "512", "64k" or "1m"
+  static int parseSize(String size) {
+    size = size.toLowerCase();
+    int unit = size.endsWith("k") ? 1 << 10 : size.endsWith("m") ? 1 << 20 : 1;
+    return Integer.parseInt(unit == 1 ? size : size.substring(0, size.length() - 1)) * unit;
+  }
+
+  /** Values picked at random in proportion to their weights */
+  static class Weighted<T> {
+
+    final List<T> values = new ArrayList<>();
+    private final List<Integer> upTo = new ArrayList<>(); // running sum of the weights
+    private int total;
+
+    // "a:3,b:1" picks a three times as often as b
+    static <T> Weighted<T> parse(String spec, Function<String, T> value) {
+      Weighted<T> weighted = new Weighted<>();
+      for (String entry : spec.split(",")) {
+        String[] pair = entry.trim().split(":");
+        int weight = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+        if (weight > 0) {
+          weighted.total += weight;
+          weighted.values.add(value.apply(pair[0].trim()));
+          weighted.upTo.add(weighted.total);
+        }
+      }
+      if (weighted.total == 0) {
+        throw new IllegalArgumentException("Nothing to pick from in " + spec);
+      }
+      return weighted;
+    }
+
+    T pick(Random random) {
+      int r = random.nextInt(total);
+      int i = 0;
+      while (upTo.get(i) <= r) {
+        i++;
+      }
+      return values.get(i);
+    }
+  }
+
+  /** Latencies of the successful operations and a count of the failed ones */
+  static class Samples {
+
+    long[] nanos = new long[1024];
+    int size;
+    int errors;
+
+    void add(long latency, boolean ok) {
+      if (!ok) {
+        errors++;
+        return;
+      }
+      if (size == nanos.length) {
+        nanos = Arrays.copyOf(nanos, size * 2);
+      }
+      nanos[size++] = latency;
+    }
+
+    void addAll(Samples other) {
+      for (int i = 0; i < other.size; i++) {
+        add(other.nanos[i], true);
+      }
+      errors += other.errors;
+    }
+
+    void sort() {
+      Arrays.sort(nanos, 0, size);
+    }
+
+    // of sorted samples
+    double percentileMillis(double percentile) {
+      if (size == 0) {
+        return 0;
+      }
+      int rank = (int) Math.ceil(size * percentile / 100);
+      return nanos[Math.max(0, rank - 1)] / 1e6;
+    }
+  }
+
+  /** One connection running operations until the deadline */
+  static class Session implements Runnable {
+
+    final String name;
+    final EnumMap<Op, Samples> samples = new EnumMap<>(Op.class);
+    long bytes; // file data sent and received
+    Exception failure; // what ended the session early
+    private final String host;
+    private final int port;
+    private final Weighted<Op> mix;
+    private final Weighted<Integer> sizes;
+    private final byte[] content;
+    private final int requestedWindowSize;
+    private final int requestedBlockSize;
+    private final Random random;
+    private final long deadline;
+    private final List<String> files = new ArrayList<>(); // uploaded and not deleted
+    private int uploads;
+    private final TftpEncoderDecoder decoder = new TftpEncoderDecoder();
+    private final TftpPacket.View view = new TftpPacket.View();
+    private final byte[] inBytes = new byte[1 << 16];
+    private final ByteBuffer inBuffer = ByteBuffer.wrap(inBytes).limit(0);
+    private final byte[] ack = new byte[4];
+    private final byte[] dataHeader = new byte[TftpPacket.DATA_HEADER_LENGTH];
+    private byte[] received; // the packet view wraps, released by the next receive
+    private InputStream in;
+    private BufferedOutputStream out;
+    private int windowSize;
+    private int blockSize;
+
+    Session(String host, int port, String name, Weighted<Op> mix, Weighted<Integer> sizes, byte[] content,
+        int windowSize, int blockSize, Random random, long deadline) {
+      this.host = host;
+      this.port = port;
+      this.name = name;
+      this.mix = mix;
+      this.sizes = sizes;
+      this.content = content;
+      this.requestedWindowSize = windowSize;
+      this.requestedBlockSize = blockSize;
+      this.random = random;
+      this.deadline = deadline;
+      for (Op op : Op.values()) {
+        samples.put(op, new Samples());
+      }
+    }
+
+    @Override
+    public void run() {
+      try (Socket socket = new Socket(host, port)) {
+        socket.setTcpNoDelay(true);
+        in = socket.getInputStream();
+        out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+        send(TftpPacket.request(TftpPacket.LOGRQ, name));
+        if (!awaitAck(0)) {
+          throw new ProtocolException("Login failed");
+        }
+        while (System.nanoTime() < deadline) {
+          Op op = mix.pick(random);
+          if ((op == Op.RRQ || op == Op.DELRQ) && files.isEmpty()) {
+            op = Op.WRQ; // nothing of ours to read or delete yet
+          }
+          long start = System.nanoTime();
+          boolean ok = run(op);
+          samples.get(op).add(System.nanoTime() - start, ok);
+        }
+        while (!files.isEmpty()) {
+          delete(files.get(files.size() - 1));
+        }
+        send(TftpPacket.opcode(TftpPacket.DISC));
+        awaitAck(0);
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+
+    private boolean run(Op op) throws IOException {
+      switch (op) {
+        case RRQ:
+          return download(files.get(random.nextInt(files.size())));
+        case WRQ:
+          return upload(name + "-" + uploads++ + ".bin", sizes.pick(random));
+        case DIRQ:
+          return list();
+        default:
+          return delete(files.get(random.nextInt(files.size())));
+      }
+    }
+
+    private boolean upload(String fileName, int size) throws IOException {
+      sendOptions();
+      send(TftpPacket.request(TftpPacket.WRQ, fileName));
+      TftpPacket.View reply = receive();
+      if (reply.opcode() == TftpOptions.OPCODE) {
+        acceptOptions(reply.array());
+      } else if (!isAck(reply, 0)) {
+        return false;
+      }
+      files.add(fileName);
+      // the name is unique, so is the content: the server deduplicates
+      // uploads by their hash and would store equal ones only once
+      byte[] stamp = fileName.getBytes(StandardCharsets.UTF_8);
+      System.arraycopy(stamp, 0, content, 0, Math.min(stamp.length, content.length));
+      long blocks = size / blockSize + 1; // the last one is short, possibly empty
+      long acked = 0;
+      while (acked < blocks) {
+        long last = Math.min(blocks, acked + windowSize);
+        for (long block = acked + 1; block <= last; block++) {
+          int offset = (int) ((block - 1) * blockSize);
+          int length = Math.min(blockSize, size - offset);
+          out.write(TftpPacket.writeDataHeader(dataHeader, length, (int) block));
+          out.write(content, offset, length);
+        }
+        out.flush();
+        if (!awaitAck(last)) {
+          files.remove(fileName);
+          return false;
+        }
+        acked = last;
+      }
+      bytes += size;
+      return true;
+    }
+
+    private boolean download(String fileName) throws IOException {
+      sendOptions();
+      send(TftpPacket.request(TftpPacket.RRQ, fileName));
+      TftpPacket.View packet = receive();
+      if (packet.opcode() == TftpOptions.OPCODE) {
+        acceptOptions(packet.array());
+        packet = receive();
+      }
+      return receiveData(packet);
+    }
+
+    private boolean list() throws IOException {
+      windowSize = 1; // a listing doesn't use the options
+      blockSize = 512;
+      send(TftpPacket.opcode(TftpPacket.DIRQ));
+      return receiveData(receive());
+    }
+
+    private boolean delete(String fileName) throws IOException {
+      files.remove(fileName);
+      send(TftpPacket.request(TftpPacket.DELRQ, fileName));
+      return awaitAck(0);
+    }
+
+    // the DATA blocks of a RRQ or DIRQ from first on, acknowledging every window
+    private boolean receiveData(TftpPacket.View packet) throws IOException {
+      long expected = 1;
+      long lastAcked = 0;
+      while (true) {
+        if (packet.opcode() != TftpPacket.DATA) {
+          return expectError(packet);
+        }
+        if (packet.block() != (expected & 0xffff)) {
+          throw new ProtocolException("Got block " + packet.block() + " instead of " + expected);
+        }
+        bytes += packet.payloadLength();
+        boolean last = packet.dataLength() < blockSize;
+        if (last || expected - lastAcked >= windowSize) {
+          send(TftpPacket.writeAck(ack, (int) expected));
+          lastAcked = expected;
+        }
+        if (last) {
+          return true;
+        }
+        expected++;
+        packet = receive();
+      }
+    }
+
+    private boolean awaitAck(long block) throws IOException {
+      TftpPacket.View reply = receive();
+      return isAck(reply, block) || expectError(reply);
+    }
+
+    private boolean isAck(TftpPacket.View packet, long block) throws ProtocolException {
+      if (packet.opcode() != TftpPacket.ACK) {
+        return false;
+      }
+      if (packet.block() != (block & 0xffff)) {
+        throw new ProtocolException("Got ACK " + packet.block() + " instead of " + block);
+      }
+      return true;
+    }
+
+    // an ERROR fails the operation, anything else leaves the session out of step
+    private boolean expectError(TftpPacket.View packet) throws ProtocolException {
+      if (packet.opcode() != TftpPacket.ERROR && packet.opcode() != TftpPacket.ACK) {
+        throw new ProtocolException("Unexpected packet " + packet.opcode());
+      }
+      return false;
+    }
+
+    private void sendOptions() throws IOException {
+      windowSize = 1;
+      blockSize = 512;
+      Map<String, String> options = new LinkedHashMap<>();
+      if (requestedWindowSize > 1) {
+        options.put(TftpOptions.WINDOW_SIZE, String.valueOf(requestedWindowSize));
+      }
+      if (requestedBlockSize != 512) {
+        options.put(TftpOptions.BLOCK_SIZE, String.valueOf(requestedBlockSize));
+      }
+      if (!options.isEmpty()) {
+        out.write(TftpOptions.packet(options));
+      }
+    }
+
+    private void acceptOptions(byte[] oack) {
+      Map<String, String> options = TftpOptions.parse(oack);
+      int window = TftpOptions.intOption(options, TftpOptions.WINDOW_SIZE, 0xffff);
+      if (window > 0) {
+        windowSize = window;
+      }
+      int block = TftpOptions.intOption(options, TftpOptions.BLOCK_SIZE, TftpOptions.MAX_BLOCK_SIZE);
+      if (block > 0) {
+        blockSize = block;
+      }
+    }
+
+    private void send(byte[] packet) throws IOException {
+      out.write(packet);
+      out.flush();
+    }
+
+    // the next packet other than a BCAST, valid until the next call
+    private TftpPacket.View receive() throws IOException {
+      if (received != null) {
+        decoder.release(received);
+        received = null;
+      }
+      while (true) {
+        while (inBuffer.hasRemaining()) {
+          byte[] packet = decoder.decodeNext(inBuffer);
+          if (packet == null) {
+            continue;
+          }
+          if (view.wrap(packet).opcode() == TftpPacket.BCAST) {
+            decoder.release(packet);
+          } else {
+            received = packet;
+            return view;
+          }
+        }
+        int read = in.read(inBytes);
+        if (read < 0) {
+          throw new EOFException("The server closed the connection");
+        }
+        inBuffer.clear().limit(read);
+      }
+    }
+  }
+}
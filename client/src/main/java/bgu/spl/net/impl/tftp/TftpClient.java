@@ -11,9 +11,16 @@ import java.io.InputStreamReader;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class TftpClient {
@@ -27,9 +34,11 @@ public class TftpClient {
       System.exit(1);
     }
 
+    String host = args[0];
+    int port = Integer.valueOf(args[1]);
     // BufferedReader and BufferedWriter automatically using UTF-8 encoding
     try {
-      Socket clientSocket = new Socket(args[0], Integer.valueOf(args[1]));
+      Socket clientSocket = new Socket(host, port);
       BufferedInputStream inputStream = new BufferedInputStream(clientSocket.getInputStream());
 
       BufferedOutputStream outputStream = new BufferedOutputStream(
@@ -37,21 +46,36 @@ public class TftpClient {
       ClientConnectionHandler clientConnection = new ClientConnectionHandler(
           inputStream,
           outputStream);
+      clientConnection.socket = clientSocket;
 
       Thread listenerThread = new Thread(() -> {
         System.out.println("start listening");
-        int bytes;
-        try {
-          while (!clientConnection.shouldTerminate && (bytes = inputStream.read()) >= 0) {
-            byte[] ans = clientConnection.encdec.decodeNextByte((byte) bytes);
-            if (ans != null) {
-              handleAns(ans, clientConnection);
+        int read;
+        byte[] bytes = new byte[1 << 13];
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (true) {
+          try {
+            while (!clientConnection.shouldTerminate &&
+                (read = clientConnection.in.read(bytes)) >= 0) {
+              buf.clear().limit(read);
+              while (buf.hasRemaining()) {
+                byte[] ans = clientConnection.encdec.decodeNext(buf);
+                if (ans != null) {
+                  handleAns(ans, clientConnection);
+                  clientConnection.encdec.release(ans);
+                }
+              }
+            }
+          } catch (IOException e) {
+            if (!clientConnection.shouldTerminate) {
+              System.out.println("connection lost: " + e.getMessage());
             }
           }
-          System.out.println("done listening");
-        } catch (IOException e) {
-          e.printStackTrace();
+          if (clientConnection.shouldTerminate || !reconnect(clientConnection, host, port)) {
+            break;
+          }
         }
+        System.out.println("done listening");
       });
       listenerThread.start();
       Thread keyBoardThread = new Thread(() -> {
@@ -86,20 +110,28 @@ public class TftpClient {
       keyBoardThread.start();
       listenerThread.join();
       System.out.println("Socket closing");
-      clientSocket.close();
+      clientConnection.socket.close();
     } catch (IOException | InterruptedException e) {
       e.printStackTrace();
     }
   }
 
   public static void handleAns(byte[] ans, ClientConnectionHandler clientC) {
-    short opCode = (short) (((short) ans[0] & 0xff) << 8 | (short) (ans[1] & 0xff));
-    switch (opCode) {
-      case 3: // DATA
-        short blockNum = (short) (((short) ans[4] & 0xff) << 8 | (short) (ans[5] & 0xff));
-        short blockLength = (short) (((short) ans[2] & 0xff) << 8 | (short) (ans[3] & 0xff));
-        if (blockNum != clientC.ansQueue.size() + 1) {
-          byte[] error = sendError((short) 0, "got the wrong block");
+    TftpPacket.View packet = clientC.packet.wrap(ans);
+    switch (packet.opcode()) {
+      case TftpPacket.DATA: // DATA
+        int blockNum = blockNumber(packet.block(), clientC.lastReceived + 1);
+        int blockLength = packet.dataLength();
+        if (blockNum != clientC.lastReceived + 1) {
+          if (clientC.windowSize > 1) {
+            // a block of the window went missing, ask for a resend after the
+            // last good one and drop the rest of the window
+            if (blockNum > clientC.lastReceived && clientC.lastAckSent != clientC.lastReceived) {
+              sendAck(clientC, clientC.lastReceived);
+            }
+            return;
+          }
+          byte[] error = TftpPacket.error(0, "got the wrong block");
           try {
             clientC.out.write(error);
             clientC.out.flush();
@@ -107,35 +139,58 @@ public class TftpClient {
             e.printStackTrace();
           }
           clientC.ansQueue.clear();
+          clientC.lastReceived = 0;
           clientC.waitingForResponse = false;
+          endReceiving(clientC, false);
           return;
         }
-        if (ans.length > 6) {
-          clientC.ansQueue.add(Arrays.copyOfRange(ans, 6, ans.length));
-        }
-        if (blockLength < 512) {
-          if (clientC.recentRequestOpCode == 1) {
-            File newFile = new File(
-                System.getProperty("user.dir"),
-                clientC.workingFileName);
-            if (newFile.exists()) {
-              newFile.delete();
+        clientC.lastReceived = blockNum;
+        if (clientC.recentRequestOpCode == 1) {
+          // RRQ blocks go straight to the file, so its size isn't bound by memory
+          try {
+            if (clientC.receiveStream == null) {
+              // a resumed RRQ appends to the part it already has
+              clientC.receiveStream = new FileOutputStream(
+                  new File(System.getProperty("user.dir"), clientC.workingFileName),
+                  clientC.transferOffset > 0);
             }
-            try {
-              newFile.createNewFile();
-              FileOutputStream fos = new FileOutputStream(newFile);
-              while (!clientC.ansQueue.isEmpty()) {
-                fos.write(clientC.ansQueue.remove());
+            if (clientC.compression != null) {
+              if (clientC.receiveDecoder == null) {
+                clientC.receiveDecoder = new Compression.Decoder(clientC.compression, clientC.maxInflatedBytes);
               }
-              clientC.recentRequestOpCode = 0;
-              clientC.waitingForResponse = false;
-              System.out.println("file has been written");
-              fos.close();
-            } catch (IOException e) {
+              clientC.receiveDecoder.write(
+                  ans, packet.payloadOffset(), packet.payloadLength(), clientC.receiveStream);
+            } else {
+              clientC.receiveStream.write(ans, packet.payloadOffset(), packet.payloadLength());
+            }
+          } catch (IOException e) {
+            if (e instanceof Compression.LimitExceededException) {
+              // the server stops sending once told
+              System.out.println("the decompressed file is too large");
+              try {
+                clientC.out.write(TftpPacket.error(3, "the decompressed file is too large"));
+                clientC.out.flush();
+              } catch (IOException ignored) {}
+            } else {
               e.printStackTrace();
-              clientC.ansQueue.clear();
-              clientC.recentRequestOpCode = 0;
-              clientC.waitingForResponse = false;
+            }
+            endReceiving(clientC, false);
+            clientC.lastReceived = 0;
+            clientC.recentRequestOpCode = 0;
+            clientC.waitingForResponse = false;
+            return;
+          }
+        } else if (packet.payloadLength() > 0) {
+          clientC.ansQueue.add(Arrays.copyOfRange(ans, packet.payloadOffset(), ans.length));
+        }
+        boolean lastBlock = blockLength < clientC.blockSize;
+        if (lastBlock) {
+          clientC.lastReceived = 0;
+          if (clientC.recentRequestOpCode == 1) {
+            clientC.recentRequestOpCode = 0;
+            clientC.waitingForResponse = false;
+            if (endReceiving(clientC, true)) {
+              System.out.println("file has been written");
             }
           } else if (clientC.recentRequestOpCode == 6) {
             List<String> fileNames = getAllFileNames(clientC.ansQueue);
@@ -147,16 +202,20 @@ public class TftpClient {
             clientC.ansQueue.clear();
           }
         }
-        byte[] ack = { 0, 4, ans[4], ans[5] };
-        try {
-          clientC.out.write((clientC.encdec.encode(ack)));
-          clientC.out.flush();
-        } catch (IOException e) {
-          e.printStackTrace();
+        // with a window only its last block, or the last block of the file, is acknowledged
+        if (lastBlock || blockNum - clientC.lastAckSent >= clientC.windowSize) {
+          sendAck(clientC, blockNum);
+        }
+        if (lastBlock) {
+          clientC.lastAckSent = 0;
         }
         break;
 
-      case 4:// ACK
+      case TftpPacket.ACK:// ACK
+        if (clientC.recentRequestOpCode == 7 && clientC.interrupted != 0) {
+          resumeTransfer(clientC); // logged in again after reconnecting
+          return;
+        }
         if (clientC.recentRequestOpCode != 2 & clientC.recentRequestOpCode != 10) {
           System.out.println("< ACK  0");
           clientC.recentRequestOpCode = 0;
@@ -164,94 +223,40 @@ public class TftpClient {
           return;
         }
         if (clientC.recentRequestOpCode == 2) {
-          short ACKblockNum = (short) (((short) ans[2] & 0xff) << 8 | (short) (ans[3] & 0xff));
-          if (clientC.writeCounter != ACKblockNum) {
-            clientC.sendQueue.clear();
-            clientC.recentRequestOpCode = 0;
-            clientC.waitingForResponse = false;
+          int ackBlockNum = packet.block();
+          if (ackBlockNum == 0 && clientC.sendChannel == null) {
+            startSending(clientC);
             return;
           }
-          if (ACKblockNum == 0) {
-            String filePath = System.getProperty("user.dir") + "/" + clientC.workingFileName;
-            try {
-
-              FileInputStream fis = new FileInputStream(filePath);
-              FileChannel channel = fis.getChannel();
-              ByteBuffer byteBuffer = ByteBuffer.allocate(512);
-
-              // Read the file inputStream chunks
-              int bytesRead;
-              while ((bytesRead = channel.read(byteBuffer)) != -1) {
-                // Rewind the buffer before reading
-                byteBuffer.rewind();
-                // increasing the block counter
-                clientC.writeCounter++;
-                // Read bytes from the buffer
-                byte[] chunk = new byte[bytesRead];
-                byteBuffer.get(chunk);
-                // Calculating the BlockNumber to bytes
-                byte[] blockNumForSend = new byte[] {
-                    ((byte) (clientC.writeCounter >> 8)),
-                    ((byte) (clientC.writeCounter & 0xff)),
-                };
-                // Calculating the packetSize to bytes
-                byte[] packetSize = new byte[] {
-                    ((byte) (bytesRead >> 8)),
-                    (byte) (bytesRead & 0xff),
-                };
-                // creating the start of the DATA Packet
-                byte[] start = {
-                    0,
-                    3,
-                    packetSize[0],
-                    packetSize[1],
-                    blockNumForSend[0],
-                    blockNumForSend[1],
-                };
-
-                // Process the chunk as needed (e.g., print or save to another file)
-                clientC.sendQueue.add(concatenateArrays(start, chunk));
-                // Clear the buffer for the next iteration
-                byteBuffer.clear();
-              }
-              // reseting the readCounter for comparing blocks
-              clientC.writeCounter = 1;
-              // Close the FileInputStream
-              fis.close();
-              if (clientC.sendQueue.isEmpty()) {
-                byte[] toSend = { 0, 3, 0, 0, 0, 1 };
-                clientC.sendQueue.add(toSend);
-              }
-              clientC.out.write(clientC.encdec.encode(clientC.sendQueue.poll()));
-              clientC.out.flush();
-            } catch (IOException e) {
-              sendError((short) 0, "error reading the file");
-              clientC.waitingForResponse = false;
-              clientC.workingFileName = "";
-              clientC.recentRequestOpCode = 0;
-            }
-          } else {
-            if (!clientC.sendQueue.isEmpty()) {
-              try {
-                clientC.out.write(
-                    clientC.encdec.encode(clientC.sendQueue.poll()));
-                clientC.out.flush();
-                clientC.writeCounter++;
-              } catch (IOException e) {
-                System.out.println("Error writing the file");
-                sendError((short) 0, "Error writing the file");
-                clientC.sendQueue.clear();
-                clientC.recentRequestOpCode = 0;
-                clientC.waitingForResponse = false;
-
-                e.printStackTrace();
-              }
-            } else if (clientC.sendQueue.isEmpty()) {
-              clientC.waitingForResponse = false;
-              clientC.recentRequestOpCode = 0;
-              clientC.writeCounter = 0;
-              System.out.println("file Sent");
+          ackBlockNum = blockNumber(ackBlockNum, clientC.nextBlock - 1);
+          // lock-step needs the block just sent, a window takes any block sent
+          // and not yet acknowledged and rewinds to the one after it
+          boolean expected = clientC.windowSize == 1
+              ? ackBlockNum == clientC.nextBlock - 1
+              : ackBlockNum >= clientC.lastAcked && ackBlockNum < clientC.nextBlock;
+          if (!expected) {
+            endSending(clientC);
+            return;
+          }
+          if (ackBlockNum == clientC.sendBlocks) {
+            if (clientC.sendEncoder != null) {
+              System.out.println(compressionSummary(clientC,
+                  clientC.sendEncoder.fileBytes(), clientC.sendEncoder.compressedBytes()));
             }
+            endSending(clientC);
+            System.out.println("file Sent");
+            return;
+          }
+          clientC.lastAcked = ackBlockNum;
+          clientC.nextBlock = ackBlockNum + 1;
+          if (clientC.sendEncoder != null) {
+            clientC.sendEncoder.acknowledged(ackBlockNum);
+          }
+          try {
+            sendWindow(clientC);
+          } catch (IOException e) {
+            e.printStackTrace();
+            endSending(clientC);
           }
         }
         if (clientC.recentRequestOpCode == 10) {
@@ -260,51 +265,351 @@ public class TftpClient {
           clientC.waitingForResponse = false;
         }
         break;
-      case 5:// ERROR
-        String errorMsg = new String(ans, 4, ans.length - 4);
-        short errorCode = (short) (((short) ans[2] & 0xff) << 8 | (short) (ans[3] & 0xff));
-        System.err.println("Error " + errorCode + ": " + errorMsg);
+      case TftpPacket.ERROR:// ERROR
+        System.err.println("Error " + packet.errorCode() + ": " + packet.errorMessage());
+        if (clientC.interrupted != 0 && clientC.reconnects < clientC.maxReconnects) {
+          // e.g. the server didn't notice yet that the old connection is gone
+          // and still holds the login or the upload, try again later
+          try {
+            clientC.socket.close();
+          } catch (IOException e) {}
+          return;
+        }
         clientC.ansQueue.clear();
-        clientC.sendQueue.clear();
-        clientC.waitingForResponse = false;
-        clientC.recentRequestOpCode = 0;
+        clientC.lastReceived = 0;
+        clientC.lastAckSent = 0;
+        endReceiving(clientC, false);
+        endSending(clientC);
+        break;
+      case TftpOptions.OPCODE: // OACK, the options the server accepted
+        Map<String, String> oack = TftpOptions.parse(ans);
+        int window = TftpOptions.intOption(oack, TftpOptions.WINDOW_SIZE, 0xffff);
+        if (window > 0) {
+          clientC.windowSize = window;
+        }
+        int block = TftpOptions.intOption(oack, TftpOptions.BLOCK_SIZE, TftpOptions.MAX_BLOCK_SIZE);
+        if (block > 0) {
+          clientC.blockSize = block;
+        }
+        clientC.transferOffset = Math.max(0, TftpOptions.longOption(oack, TftpOptions.OFFSET));
+        clientC.compression = oack.get(TftpOptions.COMPRESS);
+        if (oack.containsKey(TftpOptions.RESUME)) {
+          clientC.uploadToken = oack.get(TftpOptions.RESUME);
+        }
+        if (clientC.recentRequestOpCode == 2 && oack.containsKey(TftpOptions.HASH)) {
+          // the server stores this content already, nothing to send
+          endSending(clientC);
+          System.out.println("file Sent (the server had its content)");
+        } else if (clientC.recentRequestOpCode == 2) { // stands for ACK 0 of a WRQ
+          startSending(clientC);
+        }
         break;
-      case 9: // BCAST
-        String deleteOrAdded = (ans[2] == (byte) 1) ? "add" : "del";
-        String fileName = new String(ans, 3, ans.length - 3);
-        System.out.println("BCAST: " + deleteOrAdded + " " + fileName);
+      case TftpPacket.BCAST: // BCAST
+        String deleteOrAdded = packet.added() ? "add" : "del";
+        System.out.println("BCAST: " + deleteOrAdded + " " + packet.bcastName());
         break;
       default:
         throw new AssertionError();
     }
   }
 
-  public static byte[] sendError(short opCode, String message) {
-    byte[] opCodeByteArray = new byte[] {
-        (byte) (opCode >> 8),
-        (byte) (opCode & 0xff),
-    };
-    byte[] errorCode = { 0, 5 };
-    byte[] errorStart = concatenateArrays(errorCode, opCodeByteArray);
-    byte[] errorMsg = new String(message + new String(new byte[] { 0 }))
-        .getBytes();
-    return concatenateArrays(errorStart, errorMsg);
+  public static void sendAck(ClientConnectionHandler clientC, int blockNum) {
+    byte[] ack = TftpPacket.writeAck(clientC.ackPacket, blockNum);
+    try {
+      clientC.out.write((clientC.encdec.encode(ack)));
+      clientC.out.flush();
+      clientC.lastAckSent = blockNum;
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
   }
 
-  public static byte[] concatenateArrays(byte[] array1, byte[] array2) {
-    // Calculate the size of the concatenated array
-    int totalLength = array1.length + array2.length;
+  // opens the file of the WRQ and sends the first window
+  public static void startSending(ClientConnectionHandler clientC) {
+    String filePath = System.getProperty("user.dir") + "/" + clientC.workingFileName;
+    try {
+      clientC.sendChannel = new FileInputStream(filePath).getChannel();
+      // the server has the file up to transferOffset, the rest is sent; the
+      // last block is shorter than blockSize, possibly empty, to end the file
+      long size = clientC.sendChannel.size();
+      clientC.transferOffset = Math.min(clientC.transferOffset, size);
+      clientC.sendBlocks = (size - clientC.transferOffset) / clientC.blockSize + 1;
+      if (clientC.compression != null) {
+        clientC.sendEncoder = new Compression.Encoder(
+            clientC.compression, clientC.sendChannel::read, clientC.transferOffset, size, clientC.blockSize);
+        // the number of compressed blocks is known once the last is made
+        clientC.sendBlocks = Long.MAX_VALUE;
+      }
+      clientC.lastAcked = 0;
+      clientC.nextBlock = 1;
+      sendWindow(clientC);
+    } catch (IOException e) {
+      System.out.println("Error reading the file");
+      try {
+        clientC.out.write(TftpPacket.error(0, "error reading the file"));
+        clientC.out.flush();
+      } catch (IOException ignored) {}
+      endSending(clientC);
+      clientC.workingFileName = "";
+    }
+  }
+
+  // reads the WRQ blocks from nextBlock up to the end of the window from the
+  // file and sends them with a single flush
+  public static void sendWindow(ClientConnectionHandler clientC) throws IOException {
+    if (clientC.sendChunk.capacity() != clientC.blockSize) {
+      clientC.sendChunk = ByteBuffer.allocate(clientC.blockSize);
+    }
+    ByteBuffer chunk = clientC.sendChunk;
+    while (clientC.nextBlock <= clientC.sendBlocks &&
+        clientC.nextBlock - clientC.lastAcked <= clientC.windowSize) {
+      if (clientC.sendEncoder != null) {
+        ByteBuffer payload = clientC.sendEncoder.block(clientC.nextBlock);
+        int size = payload.remaining();
+        if (size < clientC.blockSize) {
+          clientC.sendBlocks = clientC.nextBlock;
+        }
+        byte[] start = TftpPacket.writeDataHeader(clientC.dataHeader, size, clientC.nextBlock);
+        clientC.out.write(clientC.encdec.encode(start));
+        clientC.out.write(payload.array(), payload.arrayOffset() + payload.position(), size);
+        clientC.nextBlock++;
+        continue;
+      }
+      long position = clientC.transferOffset + (clientC.nextBlock - 1L) * clientC.blockSize;
+      chunk.clear();
+      while (chunk.hasRemaining() &&
+          clientC.sendChannel.read(chunk, position + chunk.position()) > 0) {
+      }
+      int size = chunk.position();
+      byte[] start = TftpPacket.writeDataHeader(clientC.dataHeader, size, clientC.nextBlock);
+      clientC.out.write(clientC.encdec.encode(start));
+      clientC.out.write(chunk.array(), 0, size);
+      clientC.nextBlock++;
+    }
+    clientC.out.flush();
+  }
+
+  // closes the file of a RRQ, a file that wasn't received whole is deleted
+  public static boolean endReceiving(ClientConnectionHandler clientC, boolean complete) {
+    File file = new File(System.getProperty("user.dir"), clientC.workingFileName);
+    clientC.interrupted = 0;
+    clientC.reconnects = 0;
+    if (clientC.receiveDecoder != null) {
+      if (complete && !clientC.receiveDecoder.finished()) {
+        System.out.println("the compressed data ended early");
+        complete = false;
+      } else if (complete) {
+        System.out.println(compressionSummary(clientC,
+            clientC.receiveDecoder.fileBytes(), clientC.receiveDecoder.compressedBytes()));
+      }
+      clientC.receiveDecoder.end();
+      clientC.receiveDecoder = null;
+    }
+    try {
+      if (clientC.receiveStream == null) {
+        // an empty file, or an empty rest of a resumed one, has no DATA
+        // payload to open the stream with
+        if (complete) {
+          new FileOutputStream(file, clientC.transferOffset > 0).close();
+        }
+        return complete;
+      }
+      clientC.receiveStream.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+      complete = false;
+    } finally {
+      clientC.receiveStream = null;
+    }
+    if (!complete) {
+      file.delete();
+    }
+    return complete;
+  }
+
+  /**
+   * Block numbers are 16 bits on the wire and roll over from 65535 to 0, so
+   * files with more blocks still transfer. Returns the full block number
+   * whose low 16 bits are wire and that is closest to expected.
+   */
+  static int blockNumber(int wire, int expected) {
+    return expected + (short) (wire - expected);
+  }
+
+  public static void endSending(ClientConnectionHandler clientC) {
+    clientC.interrupted = 0;
+    clientC.reconnects = 0;
+    clientC.uploadToken = null;
+    if (clientC.sendEncoder != null) {
+      clientC.sendEncoder.end();
+      clientC.sendEncoder = null;
+    }
+    if (clientC.sendChannel != null) {
+      try {
+        clientC.sendChannel.close();
+      } catch (IOException e) {}
+      clientC.sendChannel = null;
+    }
+    clientC.recentRequestOpCode = 0;
+    clientC.waitingForResponse = false;
+  }
+
+  // asks for the configured window and block size before a RRQ or WRQ, the
+  // OACK may lower it, and for the rest of a transfer that was cut off
+  public static void sendOptions(ClientConnectionHandler clientC) throws IOException {
+    clientC.windowSize = 1;
+    clientC.blockSize = 512;
+    clientC.lastReceived = 0;
+    clientC.lastAckSent = 0;
+    clientC.transferOffset = 0;
+    clientC.compression = null;
+    Map<String, String> options = new LinkedHashMap<>();
+    // the server samples the file of a RRQ, the client that of a WRQ
+    if (clientC.requestedCompression != null &&
+        (clientC.recentRequestOpCode == 1 || worthCompressing(clientC.workingFileName))) {
+      options.put(TftpOptions.COMPRESS, clientC.requestedCompression);
+    }
+    if (clientC.recentRequestOpCode == 1 && clientC.interrupted == 1) {
+      long received = new File(System.getProperty("user.dir"), clientC.workingFileName).length();
+      if (received > 0) {
+        options.put(TftpOptions.OFFSET, String.valueOf(received));
+      }
+    }
+    if (clientC.recentRequestOpCode == 2) {
+      // a resumable upload is kept by the server if the connection drops
+      if (clientC.resumeUploads) {
+        boolean resuming = clientC.interrupted == 2 && clientC.uploadToken != null;
+        options.put(TftpOptions.RESUME, resuming ? clientC.uploadToken : TftpOptions.NEW_UPLOAD);
+      }
+      String hash = clientC.sendHash ? sha256(clientC.workingFileName) : null;
+      if (hash != null) {
+        options.put(TftpOptions.HASH, hash);
+      }
+    }
+    if (clientC.requestedWindowSize > 1) {
+      options.put(TftpOptions.WINDOW_SIZE, String.valueOf(clientC.requestedWindowSize));
+    }
+    if (clientC.requestedBlockSize != 512) {
+      options.put(TftpOptions.BLOCK_SIZE, String.valueOf(clientC.requestedBlockSize));
+    }
+    if (!options.isEmpty()) {
+      clientC.out.write(clientC.encdec.encode(TftpOptions.packet(options)));
+    }
+  }
 
-    // Create a new byte array to hold the concatenated data
-    byte[] result = new byte[totalLength];
+  // whether a sample of the file to send shrinks enough to compress it
+  static boolean worthCompressing(String fileName) {
+    try (FileChannel channel = FileChannel.open(Paths.get(System.getProperty("user.dir"), fileName))) {
+      return Compression.worthCompressing(channel::read, 0, channel.size());
+    } catch (IOException e) {
+      return false;
+    }
+  }
 
-    // Copy the contents of the first array into the result array
-    System.arraycopy(array1, 0, result, 0, array1.length);
+  // the SHA-256 of the file in hex, null if it can't be read
+  static String sha256(String fileName) {
+    try (FileInputStream in = new FileInputStream(new File(System.getProperty("user.dir"), fileName))) {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, read);
+      }
+      return HexFormat.of().formatHex(digest.digest());
+    } catch (IOException | NoSuchAlgorithmException e) {
+      return null;
+    }
+  }
+
+  static String compressionSummary(ClientConnectionHandler clientC, long fileBytes, long compressedBytes) {
+    return String.format("%s: %d bytes sent as %d (%.1fx)", clientC.compression, fileBytes,
+        compressedBytes, compressedBytes == 0 ? 0 : (double) fileBytes / compressedBytes);
+  }
 
-    // Copy the contents of the second array into the result array
-    System.arraycopy(array2, 0, result, array1.length, array2.length);
+  /**
+   * After the connection was lost in the middle of a RRQ or WRQ: connects
+   * again, with a growing delay between attempts, and logs in as the same
+   * user. Its ACK resumes the transfer, see resumeTransfer.
+   * @return false if there was nothing to resume or every attempt failed
+   */
+  public static boolean reconnect(ClientConnectionHandler clientC, String host, int port) {
+    if (clientC.recentRequestOpCode == 1 || clientC.recentRequestOpCode == 2) {
+      clientC.interrupted = clientC.recentRequestOpCode;
+    }
+    if (clientC.interrupted == 0 || clientC.userName == null) {
+      return false;
+    }
+    // the part received so far is kept to be resumed
+    if (clientC.receiveStream != null) {
+      try {
+        clientC.receiveStream.close();
+      } catch (IOException e) {}
+      clientC.receiveStream = null;
+    }
+    if (clientC.receiveDecoder != null) {
+      clientC.receiveDecoder.end();
+      clientC.receiveDecoder = null;
+    }
+    if (clientC.sendEncoder != null) {
+      clientC.sendEncoder.end();
+      clientC.sendEncoder = null;
+    }
+    if (clientC.sendChannel != null) {
+      try {
+        clientC.sendChannel.close();
+      } catch (IOException e) {}
+      clientC.sendChannel = null;
+    }
+    while (clientC.reconnects < clientC.maxReconnects) {
+      long delay = Math.min(10_000, 500L << clientC.reconnects);
+      clientC.reconnects++;
+      try {
+        Thread.sleep(delay);
+        Socket socket = new Socket(host, port);
+        try {
+          clientC.socket.close();
+        } catch (IOException e) {}
+        clientC.socket = socket;
+        clientC.in = new BufferedInputStream(socket.getInputStream());
+        clientC.out = new BufferedOutputStream(socket.getOutputStream());
+        clientC.encdec = new TftpEncoderDecoder();
+        clientC.recentRequestOpCode = 7;
+        clientC.out.write(
+            clientC.encdec.encode(TftpPacket.request(TftpPacket.LOGRQ, clientC.userName)));
+        clientC.out.flush();
+        System.out.println("reconnected, resuming " + clientC.workingFileName);
+        return true;
+      } catch (IOException e) {
+        System.out.println("reconnect failed: " + e.getMessage());
+      } catch (InterruptedException e) {
+        break;
+      }
+    }
+    System.out.println("can't resume " + clientC.workingFileName);
+    if (clientC.interrupted == 1) {
+      endReceiving(clientC, false);
+    } else {
+      endSending(clientC);
+    }
+    clientC.recentRequestOpCode = 0;
+    clientC.waitingForResponse = false;
+    return false;
+  }
 
-    return result;
+  // asks again for the RRQ or WRQ that was cut off, for the part of the file
+  // that is missing
+  public static void resumeTransfer(ClientConnectionHandler clientC) {
+    clientC.recentRequestOpCode = clientC.interrupted;
+    short opCode = clientC.interrupted == 1 ? TftpPacket.RRQ : TftpPacket.WRQ;
+    try {
+      sendOptions(clientC);
+      clientC.out.write(
+          clientC.encdec.encode(TftpPacket.request(opCode, clientC.workingFileName)));
+      clientC.out.flush();
+    } catch (IOException e) {
+      // the listener sees the connection fail and reconnects
+      e.printStackTrace();
+    }
   }
 
   public static List<String> getAllFileNames(
@@ -334,25 +639,16 @@ public class TftpClient {
     }
 
     // Create strings from the combined array, each separated by null byte "\0"
-    StringBuilder currentFileName = new StringBuilder();
-    for (byte b : combinedArray) {
-      if (b == 0) {
-        // Found null byte, add current file name to the list and reset
-        if (currentFileName.length() > 0) {
-          fileNames.add(currentFileName.toString());
-          currentFileName = new StringBuilder();
+    int start = 0;
+    for (int i = 0; i <= combinedArray.length; i++) {
+      if (i == combinedArray.length || combinedArray[i] == 0) {
+        if (i > start) {
+          fileNames.add(new String(combinedArray, start, i - start, StandardCharsets.UTF_8));
         }
-      } else {
-        // Append byte to current file name
-        currentFileName.append((char) b);
+        start = i + 1;
       }
     }
 
-    // Add the last file name if not added already
-    if (currentFileName.length() > 0) {
-      fileNames.add(currentFileName.toString());
-    }
-
     return fileNames;
   }
 
@@ -384,17 +680,16 @@ public class TftpClient {
       String[] cmd,
       ClientConnectionHandler clientC) {
     if (cmd[0].equals("LOGRQ")) {
-      byte[] start = { 0, 7 };
       if (checkIfContainsNullByte(cmd[1].getBytes())) {
         System.out.println("name contains null byte");
         return;
       }
-      byte[] userName = (cmd[1] + "\0").getBytes();
       try {
         clientC.recentRequestOpCode = 7;
+        clientC.userName = cmd[1];
         clientC.waitingForResponse = true;
         clientC.out.write(
-            clientC.encdec.encode(concatenateArrays(start, userName)));
+            clientC.encdec.encode(TftpPacket.request(TftpPacket.LOGRQ, cmd[1])));
         clientC.out.flush();
       } catch (IOException e) {
         clientC.recentRequestOpCode = 0;
@@ -403,29 +698,26 @@ public class TftpClient {
       }
     }
     if (cmd[0].equals("RRQ")) {
-      byte[] start = { 0, 1 };
       if (checkIfContainsNullByte(cmd[1].getBytes())) {
         System.out.println("name contains null byte");
         return;
       }
-      byte[] fileName = (cmd[1] + "\0").getBytes();
       try {
         clientC.recentRequestOpCode = 1;
         clientC.workingFileName = cmd[1];
         clientC.waitingForResponse = true;
+        sendOptions(clientC);
         clientC.out.write(
-            clientC.encdec.encode(concatenateArrays(start, fileName)));
+            clientC.encdec.encode(TftpPacket.request(TftpPacket.RRQ, cmd[1])));
         clientC.out.flush();
       } catch (IOException e) {
         clientC.recentRequestOpCode = 0;
         clientC.workingFileName = "";
         clientC.waitingForResponse = false;
-        clientC.writeCounter = 0;
         e.printStackTrace();
       }
     }
     if (cmd[0].equals("WRQ")) {
-      byte[] start = { 0, 2 };
       if (checkIfContainsNullByte(cmd[1].getBytes())) {
         System.out.println("name contains null byte");
         return;
@@ -434,13 +726,13 @@ public class TftpClient {
       if (!files.contains(cmd[1])) {
         System.out.println("File doesnt exsists in folder");
       }
-      byte[] fileName = (cmd[1] + "\0").getBytes();
       try {
         clientC.recentRequestOpCode = 2;
         clientC.waitingForResponse = true;
         clientC.workingFileName = cmd[1];
+        sendOptions(clientC);
         clientC.out.write(
-            clientC.encdec.encode(concatenateArrays(start, fileName)));
+            clientC.encdec.encode(TftpPacket.request(TftpPacket.WRQ, cmd[1])));
         clientC.out.flush();
       } catch (IOException e) {
         clientC.recentRequestOpCode = 0;
@@ -450,17 +742,15 @@ public class TftpClient {
       }
     }
     if (cmd[0].equals("DELRQ")) {
-      byte[] start = { 0, 8 };
       if (checkIfContainsNullByte(cmd[1].getBytes())) {
         System.out.println("name contains null byte");
         return;
       }
-      byte[] fileName = (cmd[1] + "\0").getBytes();
       try {
         clientC.recentRequestOpCode = 8;
         clientC.waitingForResponse = true;
         clientC.out.write(
-            clientC.encdec.encode(concatenateArrays(start, fileName)));
+            clientC.encdec.encode(TftpPacket.request(TftpPacket.DELRQ, cmd[1])));
         clientC.out.flush();
       } catch (IOException e) {
         clientC.recentRequestOpCode = 0;
@@ -469,8 +759,12 @@ public class TftpClient {
       }
     }
     if (cmd[0].equals("DIRQ")) {
-      byte[] code = { 0, 6 };
+      byte[] code = TftpPacket.opcode(TftpPacket.DIRQ);
       try {
+        clientC.windowSize = 1;
+        clientC.blockSize = 512;
+        clientC.lastReceived = 0;
+        clientC.lastAckSent = 0;
         clientC.out.write(clientC.encdec.encode(code));
         clientC.out.flush();
         clientC.recentRequestOpCode = 6;
@@ -480,7 +774,7 @@ public class TftpClient {
       }
     }
     if (cmd[0].equals("DISC")) {
-      byte[] code = { 0, 10 };
+      byte[] code = TftpPacket.opcode(TftpPacket.DISC);
       try {
         clientC.out.write(clientC.encdec.encode(code));
         clientC.out.flush();
@@ -14,4 +14,19 @@ public interface BidiMessagingProtocol<T> {
    * @return true if the connection should be terminated
    */
   boolean shouldTerminate();
+
+  /**
+   * @return true while a transfer is in progress, the connection is then held
+   * to the transfer timeout instead of the idle timeout
+   */
+  default boolean isTransferring() {
+    return false;
+  }
+
+  /**
+   * Called once after the connection was closed, for any reason, on the thread
+   * that processes its messages. Releases what the protocol holds, e.g. locks
+   * and open files.
+   */
+  default void connectionClosed() {}
 }
@@ -1,5 +1,7 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +13,24 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * decodes bytes from the given buffer until a message is complete or the
+     * buffer runs out, leaving the buffer position after the consumed bytes.
+     * Implementations should override this to consume whole runs of bytes.
+     *
+     * @param buffer the received bytes, ready to be read
+     * @return a message if the consumed bytes complete one or null if they dont.
+     */
+    default T decodeNext(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            T message = decodeNextByte(buffer.get());
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
     /**
      * encodes the given message to bytes array
      *
@@ -19,4 +39,13 @@ public interface MessageEncoderDecoder<T> {
      */
     byte[] encode(T message);
 
+    /**
+     * gives a decoded message back once it was processed, so its memory can be
+     * reused for a later message. The message must not be used afterwards.
+     *
+     * @param message a message returned by this decoder
+     */
+    default void release(T message) {
+    }
+
 }
@@ -0,0 +1,430 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps each content uploaded once, however many names it has. An upload is
+ * stored as blobs/{sha-256 of its content} and its name in Flies is a hard
+ * link to the blob, so the files are read as before and a second upload of
+ * the same content takes no space. The names table maps every name to its
+ * hash, each change is appended to the journal, blobs/names.log, and once the
+ * journal is longer than the table the table is rewritten to blobs/names with
+ * an atomic rename and the journal emptied. A blob is deleted with the last
+ * name that refers to it. Where hard links aren't supported the blob is
+ * copied, only the saving is lost.
+ *
+ * Nothing is forced to the disk per change: the table is checked against the
+ * files when it is loaded, so a change lost in a crash only loses the saving.
+ *
+ * Files put in Flies by hand aren't in the table, they are served and
+ * deleted as before. Blobs must be on the same file system as the staging
+ * area, uploads are moved into it.
+ *
+ * Reads take no lock. A content is stored, or its reference taken, before the
+ * name's lock, a copy where links aren't supported included; under the lock
+ * only the link or rename and the journal record are left. Each hash has a
+ * lock of its own, the reference count is changed under it together with the
+ * move of a new blob into the store or the delete of the last one, so
+ * different contents never wait for each other's I/O; only the writes of the
+ * table are serialized.
+ */
+public class BlobStore {
+
+  /**
+   * A content stored for a name that isn't added yet, it holds a reference to
+   * its blob until it is given to add or discard.
+   */
+  public static final class Content {
+
+    private final String hash;
+    private final Path blob;
+    private final boolean shared; // stored already before this upload
+    private Path copy; // the copy to rename to the name, where links aren't supported
+
+    private Content(String hash, Path blob, boolean shared) {
+      this.hash = hash;
+      this.blob = blob;
+      this.shared = shared;
+    }
+
+    public String hash() {
+      return hash;
+    }
+  }
+
+  // the names that refer to a stored content. An entry exists while its blob
+  // is stored or someone holds its lock, the first holder stores the blob
+  private static final class Blob {
+
+    final ReentrantLock lock = new ReentrantLock();
+    volatile int references; // changed under lock, 0 while it isn't stored
+  }
+
+  public static final String HASH_ALGORITHM = "SHA-256";
+
+  private static final byte REMOVED = 0;
+  private static final byte ADDED = 1;
+  // the journal is compacted once it has more records than this or the table
+  private static final int MIN_COMPACT_RECORDS = 1024;
+
+  private final Path files;
+  private final Path dir;
+  private final Path table;
+  private final Path journalPath;
+  private final ConcurrentHashMap<String, String> hashes = new ConcurrentHashMap<>(); // by name
+  private final ConcurrentHashMap<String, Blob> contents = new ConcurrentHashMap<>(); // by hash
+  private final AtomicInteger stored = new AtomicInteger(); // contents with references
+  private final ReentrantLock saveLock = new ReentrantLock(); // one table write at a time
+  private final ByteArrayOutputStream record = new ByteArrayOutputStream(); // guarded by saveLock
+  private FileChannel journal; // guarded by saveLock
+  private int journalRecords; // guarded by saveLock
+  private volatile boolean hardLinks = true; // false once a link failed, names are copied
+  private final LongAdder deduplicated = new LongAdder();
+  private final LongAdder savedBytes = new LongAdder();
+
+  /**
+   * Loads the names table and its journal, names whose file is gone are
+   * dropped and so are the blobs no name refers to.
+   * @param files the directory of the names, Flies
+   */
+  public BlobStore(Path files, Path dir) throws IOException {
+    this.files = files;
+    this.dir = Files.createDirectories(dir);
+    this.table = dir.resolve("names");
+    this.journalPath = dir.resolve("names.log");
+    Map<String, String> loaded = new HashMap<>();
+    if (Files.exists(table)) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(table)))) {
+        for (int count = in.readInt(); count > 0; count--) {
+          loaded.put(in.readUTF(), in.readUTF());
+        }
+      }
+    }
+    if (Files.exists(journalPath)) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalPath)))) {
+        while (true) {
+          byte type = in.readByte();
+          String name = in.readUTF();
+          if (type == ADDED) {
+            loaded.put(name, in.readUTF());
+          } else {
+            loaded.remove(name);
+          }
+        }
+      } catch (EOFException e) {
+        // the end, or a record cut short by a crash
+      }
+    }
+    for (Map.Entry<String, String> entry : loaded.entrySet()) {
+      String name = entry.getKey();
+      String hash = entry.getValue();
+      if (Files.exists(files.resolve(name)) && Files.exists(dir.resolve(hash))) {
+        hashes.put(name, hash);
+        if (contents.computeIfAbsent(hash, key -> new Blob()).references++ == 0) {
+          stored.incrementAndGet();
+        }
+      }
+    }
+    try (DirectoryStream<Path> blobs = Files.newDirectoryStream(dir)) {
+      for (Path blob : blobs) {
+        if (!blob.equals(table) && !blob.equals(journalPath) && !contents.containsKey(blob.getFileName().toString())) {
+          Files.deleteIfExists(blob);
+        }
+      }
+    }
+    journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    saveLock.lock();
+    try {
+      compact();
+    } finally {
+      saveLock.unlock();
+    }
+  }
+
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); // every JDK has SHA-256
+    }
+  }
+
+  /** a digest that has read the whole file, to go on hashing after its end */
+  public static MessageDigest digestOf(Path file) throws IOException {
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[64 * 1024];
+    try (InputStream in = Files.newInputStream(file)) {
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    return digest;
+  }
+
+  /** the hash of name's content, or null if it isn't in the table */
+  public String hashOf(String name) {
+    return hashes.get(name);
+  }
+
+  /** whether a file with this hash is stored */
+  public boolean contains(String hash) {
+    Blob blob = contents.get(hash);
+    return blob != null && blob.references > 0;
+  }
+
+  /**
+   * Stores temp, whose content hashes to hash, for a name to be added. temp
+   * is moved into the store, or deleted if the content is already there.
+   * Needs no lock.
+   */
+  public Content store(Path temp, String hash) throws IOException {
+    Path blob = dir.resolve(hash);
+    boolean shared;
+    Blob entry = lock(hash);
+    try {
+      shared = entry.references > 0;
+      if (!shared) {
+        Files.move(temp, blob, StandardCopyOption.ATOMIC_MOVE);
+        stored.incrementAndGet();
+      }
+      entry.references++;
+    } finally {
+      unlock(hash, entry);
+    }
+    if (shared) {
+      Files.delete(temp);
+    }
+    return prepare(new Content(hash, blob, shared));
+  }
+
+  /**
+   * Takes the stored content of hash for a name to be added, without an
+   * upload. Needs no lock.
+   * @return null if no content with this hash is stored
+   */
+  public Content share(String hash) throws IOException {
+    if (!contains(hash)) {
+      return null;
+    }
+    Blob entry = lock(hash);
+    try {
+      // its last name may have gone meanwhile
+      if (entry.references == 0) {
+        return null;
+      }
+      entry.references++;
+    } finally {
+      unlock(hash, entry);
+    }
+    return prepare(new Content(hash, dir.resolve(hash), true));
+  }
+
+  /**
+   * Gives name the content. The caller must hold the name's write lock and
+   * check it doesn't exist; the content is discarded if this fails.
+   */
+  public void add(String name, Content content) throws IOException {
+    Path target = files.resolve(name);
+    try {
+      if (content.copy != null) {
+        Files.move(content.copy, target);
+        content.copy = null;
+      } else {
+        try {
+          Files.createLink(target, content.blob);
+        } catch (FileAlreadyExistsException e) {
+          throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+          // e.g. a file system without hard links, the next names are
+          // copied before their lock is taken
+          hardLinks = false;
+          Files.copy(content.blob, target);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      discard(content);
+      throw e;
+    }
+    hashes.put(name, content.hash);
+    if (content.shared) {
+      deduplicated.increment();
+      savedBytes.add(Files.size(target));
+    }
+    save(name, content.hash);
+  }
+
+  /** gives back a content that wasn't added */
+  public void discard(Content content) {
+    if (content.copy != null) {
+      try {
+        Files.deleteIfExists(content.copy);
+      } catch (IOException e) {}
+      content.copy = null;
+    }
+    release(content.hash);
+  }
+
+  /**
+   * Deletes name's file, and its blob if no other name refers to it. The
+   * caller must hold the name's write lock.
+   * @return false if there was no such file
+   */
+  public boolean delete(String name) throws IOException {
+    if (!Files.deleteIfExists(files.resolve(name))) {
+      return false;
+    }
+    String hash = hashes.remove(name);
+    if (hash != null) {
+      release(hash);
+      save(name, null);
+    }
+    return true;
+  }
+
+  // where links aren't supported the blob is copied now, before the name is
+  // locked, the reference is dropped if that fails
+  private Content prepare(Content content) throws IOException {
+    if (hardLinks) {
+      return content;
+    }
+    try {
+      Path copy = Files.createTempFile(dir, "copy", ".tmp");
+      content.copy = copy;
+      Files.copy(content.blob, copy, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException | RuntimeException e) {
+      discard(content);
+      throw e;
+    }
+    return content;
+  }
+
+  // drops a reference to hash, the blob is deleted with the last one; if
+  // that fails it is deleted at the next start
+  private void release(String hash) {
+    Blob entry = lock(hash);
+    try {
+      if (entry.references > 0 && --entry.references == 0) {
+        stored.decrementAndGet();
+        try {
+          Files.deleteIfExists(dir.resolve(hash));
+        } catch (IOException e) {}
+      }
+    } finally {
+      unlock(hash, entry);
+    }
+  }
+
+  // locks the entry of hash, made without references if there is none
+  private Blob lock(String hash) {
+    while (true) {
+      Blob entry = contents.computeIfAbsent(hash, key -> new Blob());
+      entry.lock.lock();
+      if (contents.get(hash) == entry) {
+        return entry;
+      }
+      // its last reference was released meanwhile and it was removed
+      entry.lock.unlock();
+    }
+  }
+
+  // unlocks the entry, one left without references is removed
+  private void unlock(String hash, Blob entry) {
+    if (entry.references == 0) {
+      contents.remove(hash, entry);
+    }
+    entry.lock.unlock();
+  }
+
+  // appends that name was given hash, or removed if hash is null, to the
+  // journal, and compacts it once it outgrew the table
+  private void save(String name, String hash) throws IOException {
+    saveLock.lock();
+    try {
+      record.reset();
+      DataOutputStream out = new DataOutputStream(record);
+      out.writeByte(hash != null ? ADDED : REMOVED);
+      out.writeUTF(name);
+      if (hash != null) {
+        out.writeUTF(hash);
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(record.toByteArray());
+      while (buffer.hasRemaining()) {
+        journal.write(buffer);
+      }
+      if (++journalRecords > Math.max(MIN_COMPACT_RECORDS, hashes.size())) {
+        compact();
+      }
+    } finally {
+      saveLock.unlock();
+    }
+  }
+
+  // writes the table next to it, forces it to the disk and renames it over
+  // the old one, so a crash leaves the old table or the new one, then empties
+  // the journal. A crash before that replays the journal over the new table,
+  // which changes nothing. The caller must hold saveLock
+  private void compact() throws IOException {
+    Map<String, String> snapshot = new HashMap<>(hashes);
+    Path temp = dir.resolve("names.tmp");
+    try (
+      FileChannel channel = FileChannel.open(
+        temp,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.WRITE
+      );
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))
+    ) {
+      out.writeInt(snapshot.size());
+      for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeUTF(entry.getValue());
+      }
+      out.flush();
+      channel.force(true);
+    }
+    Files.move(temp, table, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    journal.truncate(0);
+    journalRecords = 0;
+  }
+
+  /** uploads whose content was stored already, including those sent as a hash only */
+  public long deduplicated() {
+    return deduplicated.sum();
+  }
+
+  /** the disk space deduplicated uploads would have taken */
+  public long savedBytes() {
+    return savedBytes.sum();
+  }
+
+  public int blobs() {
+    return stored.get();
+  }
+}
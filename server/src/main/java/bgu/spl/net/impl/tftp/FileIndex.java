@@ -0,0 +1,161 @@
+package bgu.spl.net.impl.tftp;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * The names of the files the server holds, shared by all the connections.
+ * It is read from the directory once, then kept up to date by the WRQs and
+ * DELRQs that complete and, once started, by a WatchService for changes made
+ * outside the server. The DATA packets of a DIRQ are built once and reused
+ * until the next change, so a listing needs neither disk access nor encoding.
+ */
+public class FileIndex {
+
+  private final Path dir;
+  // a file still being uploaded isn't listed, its WRQ adds it when it completes
+  private final Predicate<String> inProgress;
+  private final ConcurrentSkipListSet<String> names = new ConcurrentSkipListSet<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private volatile List<byte[]> dirqPackets; // null after a change
+
+  public FileIndex(Path dir, Predicate<String> inProgress) {
+    this.dir = dir;
+    this.inProgress = inProgress;
+    reload();
+  }
+
+  /** starts watching the directory for changes made outside the server */
+  public void start() {
+    try {
+      WatchService watcher = dir.getFileSystem().newWatchService();
+      dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, OVERFLOW);
+      Thread.ofPlatform().daemon().name("index-watcher").start(() -> watch(watcher));
+    } catch (IOException e) {
+      System.out.println("Changes made outside the server won't be listed: " + e);
+    }
+  }
+
+  public void add(String name) {
+    lock.lock();
+    try {
+      if (names.add(name)) dirqPackets = null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void remove(String name) {
+    lock.lock();
+    try {
+      if (names.remove(name)) dirqPackets = null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the DATA packets of a DIRQ answer, shared, so they must not be changed
+   */
+  public List<byte[]> dirqPackets() {
+    List<byte[]> packets = dirqPackets;
+    if (packets != null) {
+      return packets;
+    }
+    lock.lock();
+    try {
+      if (dirqPackets == null) {
+        dirqPackets = encode();
+      }
+      return dirqPackets;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // reads the directory again, when watch events were lost
+  private void reload() {
+    lock.lock();
+    try {
+      names.clear();
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+        for (Path file : files) {
+          String name = file.getFileName().toString();
+          if (!inProgress.test(name)) names.add(name);
+        }
+      } catch (IOException e) {
+        System.out.println("Folder does not exist or is not a directory.");
+      }
+      dirqPackets = null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void watch(WatchService watcher) {
+    try {
+      while (true) {
+        WatchKey key = watcher.take();
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == OVERFLOW) {
+            reload();
+            continue;
+          }
+          String name = ((Path) event.context()).toString();
+          if (event.kind() == ENTRY_DELETE) {
+            remove(name);
+          } else if (!inProgress.test(name)) {
+            add(name);
+          }
+        }
+        if (!key.reset()) {
+          return;
+        }
+      }
+    } catch (InterruptedException e) {}
+  }
+
+  // the names, each ended by a 0, in DATA packets of up to 512 bytes
+  private List<byte[]> encode() {
+    ByteArrayOutputStream listing = new ByteArrayOutputStream();
+    for (String name : names) {
+      listing.writeBytes(name.getBytes(StandardCharsets.UTF_8));
+      listing.write(0);
+    }
+    if (names.isEmpty()) {
+      listing.writeBytes("No files in the server\0".getBytes(StandardCharsets.UTF_8));
+    }
+    byte[] bytes = listing.toByteArray();
+    List<byte[]> packets = new ArrayList<>();
+    int block = 1;
+    int start = 0;
+    int size;
+    // a full last block is followed by an empty one to end the listing
+    do {
+      size = Math.min(TftpProtocol.DEFAULT_BLOCK_SIZE, bytes.length - start);
+      byte[] packet = TftpPacket.writeDataHeader(new byte[TftpPacket.DATA_HEADER_LENGTH + size], size, block);
+      System.arraycopy(bytes, start, packet, TftpPacket.DATA_HEADER_LENGTH, size);
+      packets.add(packet);
+      start += size;
+      block++;
+    } while (size == TftpProtocol.DEFAULT_BLOCK_SIZE);
+    return Collections.unmodifiableList(packets);
+  }
+}
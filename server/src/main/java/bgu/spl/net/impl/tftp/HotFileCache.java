@@ -0,0 +1,151 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The contents of the files read most recently, shared by all the
+ * connections and bounded by their total size. The least recently read file
+ * is evicted first. A file is cached only if it takes at most an eighth of the
+ * cache, so one big download can't flush the hot files.
+ *
+ * An entry is dropped by a WRQ or DELRQ of its name, and it is checked against
+ * the file's size and modification time before use in case the file was
+ * changed outside the server.
+ */
+public class HotFileCache {
+
+  private static class Entry {
+
+    final byte[] content;
+    final long lastModified;
+
+    Entry(byte[] content, long lastModified) {
+      this.content = content;
+      this.lastModified = lastModified;
+    }
+  }
+
+  private final long maxBytes;
+  private final long maxEntryBytes;
+  private long bytes;
+  // access order, the eldest entry is the least recently used
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final ReentrantLock lock = new ReentrantLock();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder bypassed = new LongAdder(); // too big to be cached
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param maxBytes the most the cached contents may take, 0 disables the cache
+   */
+  public HotFileCache(long maxBytes) {
+    this.maxBytes = Math.max(0, maxBytes);
+    this.maxEntryBytes = this.maxBytes / 8;
+  }
+
+  /**
+   * Returns the content of the file, read from the disk on a miss. The caller
+   * must hold the file's read lock, so it doesn't change while it is read.
+   * @return the content, shared so it must not be changed, or null if the
+   * file is too big to be cached
+   */
+  public byte[] get(String name, Path file) throws IOException {
+    if (maxBytes == 0) {
+      return null;
+    }
+    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    long lastModified = attributes.lastModifiedTime().toMillis();
+    lock.lock();
+    try {
+      Entry entry = entries.get(name);
+      if (
+        entry != null &&
+        entry.content.length == attributes.size() &&
+        entry.lastModified == lastModified
+      ) {
+        hits.increment();
+        return entry.content;
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (attributes.size() > maxEntryBytes) {
+      bypassed.increment();
+      return null;
+    }
+    misses.increment();
+    byte[] content = Files.readAllBytes(file);
+    put(name, new Entry(content, lastModified));
+    return content;
+  }
+
+  public void invalidate(String name) {
+    lock.lock();
+    try {
+      Entry entry = entries.remove(name);
+      if (entry != null) bytes -= entry.content.length;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void put(String name, Entry entry) {
+    lock.lock();
+    try {
+      Entry old = entries.put(name, entry);
+      if (old != null) bytes -= old.content.length;
+      bytes += entry.content.length;
+      Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+      while (bytes > maxBytes) {
+        bytes -= eldest.next().getValue().content.length;
+        eldest.remove();
+        evictions.increment();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long hits() {
+    return hits.sum();
+  }
+
+  public long misses() {
+    return misses.sum();
+  }
+
+  public long bypassed() {
+    return bypassed.sum();
+  }
+
+  public long evictions() {
+    return evictions.sum();
+  }
+
+  public long bytes() {
+    lock.lock();
+    try {
+      return bytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return (
+      "cache hits " + hits() + ", misses " + misses() + ", bypassed " + bypassed() +
+      ", evictions " + evictions() +
+      ", " + bytes() + "/" + maxBytes + " bytes"
+    );
+  }
+}
@@ -0,0 +1,140 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Read-only mappings of the large files being downloaded, shared by all the
+ * RRQs of a file. DATA payloads are slices of the mapping, so a block is read
+ * from the page cache and never copied to the heap.
+ *
+ * A mapping is dropped when its last transfer ends or its file is deleted.
+ * Java can't unmap a buffer explicitly, it is unmapped once the buffer and
+ * the slices still queued for sending are garbage.
+ */
+public class MappedFiles {
+
+  public static class Mapping {
+
+    final String name;
+    final MappedByteBuffer buffer;
+    final long lastModified;
+    int users; // guarded by the registry's lock
+
+    Mapping(String name, MappedByteBuffer buffer, long lastModified) {
+      this.name = name;
+      this.buffer = buffer;
+      this.lastModified = lastModified;
+    }
+
+    public int size() {
+      return buffer.capacity();
+    }
+
+    public ByteBuffer slice(long position, int size) {
+      return buffer.slice((int) position, size);
+    }
+  }
+
+  private final long threshold;
+  private final HashMap<String, Mapping> mappings = new HashMap<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final LongAdder mapped = new LongAdder();
+  private final LongAdder shared = new LongAdder();
+
+  /**
+   * @param threshold files of at least this many bytes are mapped, 0 or less
+   * maps none
+   */
+  public MappedFiles(long threshold) {
+    this.threshold = threshold;
+  }
+
+  /**
+   * @return true if a file of size bytes should be served from a mapping,
+   * a single buffer holds at most 2GB
+   */
+  public boolean shouldMap(long size) {
+    return threshold > 0 && size >= threshold && size <= Integer.MAX_VALUE;
+  }
+
+  /**
+   * Returns the mapping of the file, mapped now unless a transfer of the same
+   * content already holds one. The caller must hold the file's read lock and
+   * give the mapping back with release.
+   */
+  public Mapping acquire(String name, Path file) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    long lastModified = attributes.lastModifiedTime().toMillis();
+    lock.lock();
+    try {
+      Mapping mapping = mappings.get(name);
+      if (mapping != null && isCurrent(mapping, attributes.size(), lastModified)) {
+        mapping.users++;
+        shared.increment();
+        return mapping;
+      }
+    } finally {
+      lock.unlock();
+    }
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    mapped.increment();
+    Mapping mapping = new Mapping(name, buffer, lastModified);
+    mapping.users = 1;
+    lock.lock();
+    try {
+      Mapping current = mappings.get(name);
+      if (current == null || !isCurrent(current, buffer.capacity(), lastModified)) {
+        mappings.put(name, mapping);
+      }
+    } finally {
+      lock.unlock();
+    }
+    return mapping;
+  }
+
+  public void release(Mapping mapping) {
+    lock.lock();
+    try {
+      if (--mapping.users == 0 && mappings.get(mapping.name) == mapping) {
+        mappings.remove(mapping.name);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // the file was deleted or replaced, transfers that hold the mapping finish with it
+  public void invalidate(String name) {
+    lock.lock();
+    try {
+      mappings.remove(name);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static boolean isCurrent(Mapping mapping, long size, long lastModified) {
+    return mapping.size() == size && mapping.lastModified == lastModified;
+  }
+
+  public long mapped() {
+    return mapped.sum();
+  }
+
+  public long shared() {
+    return shared.sum();
+  }
+}
@@ -0,0 +1,160 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Where WRQs write their files until the last block arrived. An upload goes to
+ * a temp file of its own and is published by moving it into the BlobStore, so
+ * a half-written file is never seen and a failed upload only drops its temp
+ * file. A name is reserved while it is being uploaded, so a second WRQ of it
+ * fails at once.
+ *
+ * An upload cut off by its connection can be kept under a token instead, its
+ * name stays reserved and a WRQ with the token goes on from where it stopped.
+ * A kept upload that isn't resumed within the retention period is dropped by
+ * the next call that begins or resumes an upload.
+ *
+ * The staging directory must be on the same file system as the blobs.
+ */
+public class StagingArea {
+
+  private record Suspended(String name, Path temp, long expires) {}
+
+  private final Path dir;
+  private final long retentionNanos;
+  private final Set<String> reserved = ConcurrentHashMap.newKeySet();
+  private final Map<String, Suspended> suspended = new ConcurrentHashMap<>(); // by token
+  private final SecureRandom random = new SecureRandom();
+
+  public StagingArea(Path dir) throws IOException {
+    this(dir, 0);
+  }
+
+  /**
+   * @param retentionMillis how long an interrupted upload is kept to be
+   * resumed, 0 or less never keeps one
+   */
+  public StagingArea(Path dir, long retentionMillis) throws IOException {
+    this.dir = Files.createDirectories(dir);
+    this.retentionNanos = Math.max(0, retentionMillis) * 1_000_000;
+    // temp files left by a server that stopped mid upload
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir)) {
+      for (Path file : files) {
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+
+  /**
+   * Reserves name and creates the temp file its upload is written to.
+   * @return the temp file, or null if name is already being uploaded
+   */
+  public Path begin(String name) throws IOException {
+    if (!reserve(name)) {
+      return null;
+    }
+    try {
+      return Files.createTempFile(dir, "upload", ".part");
+    } catch (IOException e) {
+      reserved.remove(name);
+      throw e;
+    }
+  }
+
+  /** reserves name for an upload without a temp file, false if it is being uploaded */
+  public boolean reserve(String name) {
+    dropExpired();
+    return reserved.add(name);
+  }
+
+  public void release(String name) {
+    reserved.remove(name);
+  }
+
+  /**
+   * Adds the content stored for the upload of name to blobs as name and ends
+   * its reservation. The caller must hold name's write lock and check it
+   * doesn't exist.
+   */
+  public void publish(String name, BlobStore.Content content, BlobStore blobs) throws IOException {
+    try {
+      blobs.add(name, content);
+    } finally {
+      reserved.remove(name);
+    }
+  }
+
+  /** gives back the content stored for the upload of name, which wasn't published */
+  public void discard(String name, BlobStore.Content content, BlobStore blobs) {
+    try {
+      blobs.discard(content);
+    } finally {
+      reserved.remove(name);
+    }
+  }
+
+  public void abort(String name, Path temp) {
+    try {
+      Files.deleteIfExists(temp);
+    } catch (IOException e) {} finally {
+      reserved.remove(name);
+    }
+  }
+
+  public boolean resumable() {
+    return retentionNanos > 0;
+  }
+
+  /** a new token for an upload, hard to guess so only its client resumes it */
+  public String newToken() {
+    byte[] token = new byte[12];
+    random.nextBytes(token);
+    return HexFormat.of().formatHex(token);
+  }
+
+  /**
+   * Keeps the temp file of an interrupted upload under token, name stays
+   * reserved. Without a retention period the upload is aborted.
+   */
+  public void suspend(String token, String name, Path temp) {
+    if (!resumable()) {
+      abort(name, temp);
+      return;
+    }
+    suspended.put(token, new Suspended(name, temp, System.nanoTime() + retentionNanos));
+  }
+
+  /**
+   * Takes back the upload of name kept under token, its name is still reserved.
+   * @return its temp file, or null if there is none or it was kept for another name
+   */
+  public Path resume(String token, String name) {
+    dropExpired();
+    Suspended upload = suspended.get(token);
+    if (upload == null || !upload.name().equals(name) || !suspended.remove(token, upload)) {
+      return null;
+    }
+    return upload.temp();
+  }
+
+  private void dropExpired() {
+    if (suspended.isEmpty()) {
+      return;
+    }
+    long now = System.nanoTime();
+    for (Map.Entry<String, Suspended> entry : suspended.entrySet()) {
+      Suspended upload = entry.getValue();
+      if (now - upload.expires() > 0 && suspended.remove(entry.getKey(), upload)) {
+        abort(upload.name(), upload.temp());
+      }
+    }
+  }
+}
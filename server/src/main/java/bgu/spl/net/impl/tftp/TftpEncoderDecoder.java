@@ -1,96 +1,110 @@
 package bgu.spl.net.impl.tftp;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+/**
+ * Cuts the TFTP packets out of the bytes read from a connection.
+ *
+ * The client has the same file, both must stay identical, SharedSourcesTest
+ * of the server checks it.
+ */
 public class TftpEncoderDecoder implements MessageEncoderDecoder<byte[]> {
 
+  // How a packet ends once its opcode is known
+  private static final byte FIXED = 0; // after HEADER[opCode] bytes
+  private static final byte TERMINATED = 1; // at the first 0 after HEADER[opCode] bytes
+  private static final byte SIZED = 2; // after the 6 byte header plus the size it carries
+  private static final byte OPTIONS = 3; // at a 0 that follows another 0 or the header
+
+  // Indexed by opcode, unknown opcodes are passed on as a bare 2 byte packet
+  private static final byte[] KIND = {
+    FIXED, // unknown
+    TERMINATED, // 1 RRQ
+    TERMINATED, // 2 WRQ
+    SIZED, // 3 DATA
+    FIXED, // 4 ACK
+    TERMINATED, // 5 ERROR
+    FIXED, // 6 DIRQ
+    TERMINATED, // 7 LOGRQ
+    TERMINATED, // 8 DELRQ
+    TERMINATED, // 9 BCAST
+    FIXED, // 10 DISC
+    OPTIONS, // 11 OPTIONS / OACK
+  };
+  private static final int[] HEADER = { 2, 2, 2, 6, 4, 4, 2, 2, 2, 3, 2, 2 };
+
+  private static final int MAX_TERMINATED_LENGTH = 1 << 16;
+  private static final int MAX_DATA_LENGTH = 6 + 0xffff;
+  private static final int RELEASED_SLOTS = 4;
+
   private byte[] buffer = new byte[1 << 10]; // start with 1k
   private int length = 0;
-  private short operationCode;
+  private int operationCode;
+  private int expected; // total length of a FIXED or SIZED packet
+  private boolean discarding; // skipping a packet that exceeded its bound
+  private final ByteBuffer single = ByteBuffer.allocate(1);
+  // packets given back with release, reused for the next packet of the same
+  // length, so a transfer of same size DATA blocks and ACKs allocates none
+  private final byte[][] released = new byte[RELEASED_SLOTS][];
 
   @Override
   public byte[] decodeNextByte(byte nextByte) {
-    byte[] returnBytes;
-    if (length < 2) { // Reading the opcode:
-      buffer[length] = nextByte;
-      length++;
-      if (length == 2) { // Save the opcode as short:
-        operationCode = (short) (((short) buffer[0] & 0xff) << 8 | (short) (buffer[1] & 0xff));
-        if (operationCode == 6 || operationCode == 10) {
-          returnBytes = Arrays.copyOfRange(buffer, 0, length);
-          buffer = new byte[1 << 10];
-          length = 0;
-          return returnBytes;
-        }
-      }
-    } else { // Finished reading opcode
-      if (
-        operationCode == 1 || // Read request
-        operationCode == 2 || // Write request
-        operationCode == 7 || // Login request
-        operationCode == 8 // Delete file request
-      ) {
-        if (nextByte == 0) {
-          returnBytes = Arrays.copyOfRange(buffer, 0, length);
-          buffer = new byte[1 << 10];
-          length = 0;
-          return returnBytes;
-        }
-        buffer[length] = nextByte;
-        length++;
-      }
-      if (operationCode == 4) {
-        buffer[length] = nextByte;
-        length++;
-        if (length == 4) {
-          returnBytes = Arrays.copyOfRange(buffer, 0, length);
-          buffer = new byte[1 << 10];
-          length = 0;
-          return returnBytes;
-        }
-      }
-      if (operationCode == 3) { // Data
-        buffer[length] = nextByte;
-        length++;
+    single.clear();
+    single.put(nextByte);
+    single.flip();
+    return decodeNext(single);
+  }
 
-        if (length >= 6) {
-          short packetSize = (short) (((short) buffer[2]) << 8 | (short) (buffer[3] & 0xff));
-          if (length == 6 + packetSize) {
-            returnBytes = Arrays.copyOfRange(buffer, 0, length);
-            buffer = new byte[1 << 10];
-            length = 0;
-            return returnBytes;
+  @Override
+  public byte[] decodeNext(ByteBuffer in) {
+    while (in.hasRemaining()) {
+      if (length < 2) { // Reading the opcode:
+        buffer[length++] = in.get();
+        if (length == 2) {
+          int opCode = (buffer[0] & 0xff) << 8 | (buffer[1] & 0xff);
+          operationCode = opCode < KIND.length ? opCode : 0;
+          expected = HEADER[operationCode];
+          if (KIND[operationCode] == FIXED && expected == 2) {
+            return popPacket();
           }
         }
+        continue;
       }
-      if (operationCode == 9) { // BCAST
-        if (nextByte == 0 && length != 2) {
-          returnBytes = Arrays.copyOfRange(buffer, 0, length);
-          buffer = new byte[1 << 10];
-          length = 0;
-          return returnBytes;
+
+      if (KIND[operationCode] == TERMINATED || KIND[operationCode] == OPTIONS) {
+        if (length < HEADER[operationCode]) {
+          append(in, HEADER[operationCode] - length);
+          continue;
         }
-        buffer[length] = nextByte;
-        length++;
-      }
-      if (operationCode == 5) {
-        if (length < 4) {
-          buffer[length] = nextByte;
-          length++;
+        int end = indexOfZero(in);
+        if (end < 0) {
+          append(in, in.remaining());
+        } else if (KIND[operationCode] == OPTIONS && !endsOptions(end, in)) {
+          append(in, end - in.position() + 1); // keep the 0 between fields
         } else {
-          if (nextByte == 0) {
-            returnBytes = Arrays.copyOfRange(buffer, 0, length);
-            buffer = new byte[1 << 10];
+          append(in, end - in.position());
+          in.get(); // the terminating 0
+          if (discarding) {
+            discarding = false;
             length = 0;
-            return returnBytes;
+          } else {
+            return popPacket();
+          }
+        }
+      } else { // FIXED or SIZED
+        append(in, expected - length);
+        if (length == expected) {
+          if (KIND[operationCode] == SIZED && expected == 6) {
+            expected += (buffer[2] & 0xff) << 8 | (buffer[3] & 0xff);
+          }
+          if (length == expected) {
+            return popPacket();
           }
-          buffer[length] = nextByte;
-          length++;
         }
       }
     }
-
     return null;
   }
 
@@ -98,4 +112,66 @@ public class TftpEncoderDecoder implements MessageEncoderDecoder<byte[]> {
   public byte[] encode(byte[] message) {
     return message;
   }
+
+  @Override
+  public void release(byte[] message) {
+    for (int i = 0; i < RELEASED_SLOTS; i++) {
+      if (released[i] == null) {
+        released[i] = message;
+        return;
+      }
+    }
+    // all slots are taken, the oldest length is the least likely to come again
+    System.arraycopy(released, 1, released, 0, RELEASED_SLOTS - 1);
+    released[RELEASED_SLOTS - 1] = message;
+  }
+
+  // copies up to count bytes of in into the buffer, growing it within the bound
+  private void append(ByteBuffer in, int count) {
+    count = Math.min(count, in.remaining());
+    int max = KIND[operationCode] == SIZED ? MAX_DATA_LENGTH : MAX_TERMINATED_LENGTH;
+    if (discarding || length + count > max) {
+      discarding = true;
+      in.position(in.position() + count);
+      return;
+    }
+    if (length + count > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.min(max, Math.max(length + count, buffer.length * 2)));
+    }
+    in.get(buffer, length, count);
+    length += count;
+  }
+
+  // an options list ends with an empty name: a 0 right after the header or another 0
+  private boolean endsOptions(int zeroIndex, ByteBuffer in) {
+    return (
+      zeroIndex == in.position() &&
+      (length == HEADER[operationCode] || buffer[length - 1] == 0)
+    );
+  }
+
+  private static int indexOfZero(ByteBuffer in) {
+    for (int i = in.position(); i < in.limit(); i++) {
+      if (in.get(i) == 0) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private byte[] popPacket() {
+    byte[] packet = null;
+    for (int i = 0; i < RELEASED_SLOTS && packet == null; i++) {
+      if (released[i] != null && released[i].length == length) {
+        packet = released[i];
+        released[i] = null;
+      }
+    }
+    if (packet == null) {
+      packet = new byte[length];
+    }
+    System.arraycopy(buffer, 0, packet, 0, length);
+    length = 0;
+    return packet;
+  }
 }
@@ -0,0 +1,207 @@
+package bgu.spl.net.impl.tftp;
+
+import bgu.spl.net.srv.ConnectionsImpl;
+import bgu.spl.net.srv.EventLog;
+import bgu.spl.net.srv.LatencyHistogram;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The server's counters, registered as the MXBean bgu.spl.net.tftp:type=Server
+ * for jconsole and other JMX clients. The protocol records into LongAdders and
+ * LatencyHistograms, which allocate nothing, the totals are summed only when
+ * an attribute is read.
+ */
+public class TftpMetrics implements TftpMetricsMXBean {
+
+  private static final String[] PACKET_NAMES = {
+    "unknown", "RRQ", "WRQ", "DATA", "ACK", "ERROR", "DIRQ", "LOGRQ", "DELRQ", "BCAST", "DISC", "OPTIONS",
+  };
+
+  private final ConnectionsImpl<byte[]> connections;
+  private final HotFileCache fileCache;
+  private final BlobStore blobs;
+  private final LongAdder[] requests = new LongAdder[PACKET_NAMES.length];
+  private final LongAdder activeReads = new LongAdder();
+  private final LongAdder activeWrites = new LongAdder();
+  private final LongAdder compressedTransfers = new LongAdder();
+  private final LongAdder compressedFileBytes = new LongAdder();
+  private final LongAdder compressedWireBytes = new LongAdder();
+  final LatencyHistogram firstData = new LatencyHistogram();
+  final LatencyHistogram ackRoundTrip = new LatencyHistogram();
+
+  public TftpMetrics(ConnectionsImpl<byte[]> connections, HotFileCache fileCache, BlobStore blobs) {
+    this.connections = connections;
+    this.fileCache = fileCache;
+    this.blobs = blobs;
+    for (int i = 0; i < requests.length; i++) {
+      requests[i] = new LongAdder();
+    }
+  }
+
+  public void register() throws JMException {
+    ManagementFactory.getPlatformMBeanServer()
+        .registerMBean(this, new ObjectName("bgu.spl.net.tftp:type=Server"));
+  }
+
+  void request(int opcode) {
+    requests[opcode < requests.length ? opcode : 0].increment();
+  }
+
+  // a RRQ or WRQ took (delta 1) or gave back (delta -1) a transfer slot
+  void transfer(short opcode, int delta) {
+    (opcode == TftpPacket.RRQ ? activeReads : activeWrites).add(delta);
+  }
+
+  // a transfer sent fileBytes of its file as wireBytes of compressed DATA
+  void compressed(long fileBytes, long wireBytes) {
+    compressedTransfers.increment();
+    compressedFileBytes.add(fileBytes);
+    compressedWireBytes.add(wireBytes);
+  }
+
+  @Override
+  public int getActiveConnections() {
+    return connections.connectionCount();
+  }
+
+  @Override
+  public int getLoggedInUsers() {
+    return connections.loggedInCount();
+  }
+
+  @Override
+  public Map<String, Long> getRequestCounts() {
+    Map<String, Long> counts = new LinkedHashMap<>();
+    for (int i = 0; i < requests.length; i++) {
+      counts.put(PACKET_NAMES[i], requests[i].sum());
+    }
+    return counts;
+  }
+
+  @Override
+  public long getBytesIn() {
+    return connections.bytesIn.sum();
+  }
+
+  @Override
+  public long getBytesOut() {
+    return connections.bytesOut.sum();
+  }
+
+  @Override
+  public long getActiveReads() {
+    return activeReads.sum();
+  }
+
+  @Override
+  public long getActiveWrites() {
+    return activeWrites.sum();
+  }
+
+  @Override
+  public long getRejectedConnections() {
+    return connections.admission.rejectedConnections();
+  }
+
+  @Override
+  public long getRejectedTransfers() {
+    return connections.admission.rejectedTransfers();
+  }
+
+  @Override
+  public long getCacheHits() {
+    return fileCache.hits();
+  }
+
+  @Override
+  public long getCacheMisses() {
+    return fileCache.misses();
+  }
+
+  @Override
+  public long getCacheEvictions() {
+    return fileCache.evictions();
+  }
+
+  @Override
+  public long getCacheBypassed() {
+    return fileCache.bypassed();
+  }
+
+  @Override
+  public long getBroadcastsDropped() {
+    return connections.broadcaster.dropped();
+  }
+
+  @Override
+  public long getCompressedTransfers() {
+    return compressedTransfers.sum();
+  }
+
+  @Override
+  public double getCompressionRatio() {
+    long wire = compressedWireBytes.sum();
+    return wire == 0 ? 0 : (double) compressedFileBytes.sum() / wire;
+  }
+
+  @Override
+  public long getDeduplicatedUploads() {
+    return blobs.deduplicated();
+  }
+
+  @Override
+  public long getDeduplicatedBytes() {
+    return blobs.savedBytes();
+  }
+
+  @Override
+  public int getStoredContents() {
+    return blobs.blobs();
+  }
+
+  @Override
+  public long getIdleConnectionsClosed() {
+    return connections.timeouts.idleClosed();
+  }
+
+  @Override
+  public long getStalledTransfersClosed() {
+    return connections.timeouts.stalledClosed();
+  }
+
+  @Override
+  public long getLogEventsDropped() {
+    return EventLog.get().dropped();
+  }
+
+  @Override
+  public Map<String, Long> getLockWaitMicros() {
+    return summary(connections.fileLocks.waits);
+  }
+
+  @Override
+  public Map<String, Long> getFirstDataLatencyMicros() {
+    return summary(firstData);
+  }
+
+  @Override
+  public Map<String, Long> getAckRoundTripMicros() {
+    return summary(ackRoundTrip);
+  }
+
+  private static Map<String, Long> summary(LatencyHistogram histogram) {
+    Map<String, Long> summary = new LinkedHashMap<>();
+    summary.put("count", histogram.count());
+    summary.put("mean", histogram.meanNanos() / 1000);
+    summary.put("p50", histogram.percentileNanos(50) / 1000);
+    summary.put("p90", histogram.percentileNanos(90) / 1000);
+    summary.put("p99", histogram.percentileNanos(99) / 1000);
+    summary.put("max", histogram.maxNanos() / 1000);
+    return summary;
+  }
+}
@@ -0,0 +1,67 @@
+package bgu.spl.net.impl.tftp;
+
+import java.util.Map;
+
+/** What TftpMetrics shows over JMX, latencies are in microseconds. */
+public interface TftpMetricsMXBean {
+  int getActiveConnections();
+
+  int getLoggedInUsers();
+
+  /** requests received, by packet name */
+  Map<String, Long> getRequestCounts();
+
+  long getBytesIn();
+
+  long getBytesOut();
+
+  long getActiveReads();
+
+  long getActiveWrites();
+
+  long getRejectedConnections();
+
+  long getRejectedTransfers();
+
+  long getCacheHits();
+
+  long getCacheMisses();
+
+  /** entries dropped to make room for others, a high rate means the cache thrashes */
+  long getCacheEvictions();
+
+  /** reads of files too big for the cache, not counted as misses */
+  long getCacheBypassed();
+
+  long getBroadcastsDropped();
+
+  long getCompressedTransfers();
+
+  /** bytes of files per byte of compressed DATA, over all compressed transfers */
+  double getCompressionRatio();
+
+  /** WRQs of content stored already, it wasn't stored again */
+  long getDeduplicatedUploads();
+
+  /** the disk space the deduplicated uploads would have taken */
+  long getDeduplicatedBytes();
+
+  /** distinct contents in the blob store */
+  int getStoredContents();
+
+  long getIdleConnectionsClosed();
+
+  long getStalledTransfersClosed();
+
+  /** events the event log dropped because its ring was full */
+  long getLogEventsDropped();
+
+  /** count, mean, p50, p90, p99 and max of the waits for a file read lock */
+  Map<String, Long> getLockWaitMicros();
+
+  /** from a RRQ to its first DATA block being queued */
+  Map<String, Long> getFirstDataLatencyMicros();
+
+  /** from a RRQ window being sent to its ACK */
+  Map<String, Long> getAckRoundTripMicros();
+}
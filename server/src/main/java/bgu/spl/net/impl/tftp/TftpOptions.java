@@ -0,0 +1,121 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The option packet (opcode 11): 0 11 name 0 value 0 ... 0, a list of pairs
+ * ended by an empty name. A client sends it right before a RRQ or WRQ to ask
+ * for options in the spirit of RFC 2347. The server answers that request with
+ * an option packet holding the options it accepted (an OACK) before the
+ * first DATA block of a RRQ or instead of ACK 0 of a WRQ. When nothing was
+ * accepted no OACK is sent and the transfer runs with the defaults.
+ *
+ * The client has the same file, both must stay identical, SharedSourcesTest
+ * of the server checks it.
+ */
+public class TftpOptions {
+
+  public static final short OPCODE = 11;
+
+  public static final String WINDOW_SIZE = "windowsize";
+
+  /** RFC 2348 block size, the payload of a full DATA block */
+  public static final String BLOCK_SIZE = "blksize";
+  public static final int MIN_BLOCK_SIZE = 8;
+  public static final int MAX_BLOCK_SIZE = 65464;
+
+  /**
+   * RRQ: the bytes of the file the client already has, the transfer starts
+   * after them. The OACK of a RRQ or a resumable WRQ holds the byte offset
+   * the transfer actually starts at, DATA block 1 is the data from there.
+   */
+  public static final String OFFSET = "offset";
+
+  /**
+   * WRQ: NEW_UPLOAD, or the token of an upload that was cut off, to keep it
+   * if the connection drops. The OACK holds the token of the upload.
+   */
+  public static final String RESUME = "resume";
+  public static final String NEW_UPLOAD = "new";
+
+  /**
+   * WRQ: the SHA-256 of the file, in hex. If the server stores this content
+   * already the OACK holds it and the file is stored without an upload,
+   * otherwise the upload is checked against it.
+   */
+  public static final String HASH = "sha256";
+
+  /** the codecs to compress the DATA payloads with, see Compression */
+  public static final String COMPRESS = "compress";
+
+  public static Map<String, String> parse(byte[] packet) {
+    Map<String, String> options = new LinkedHashMap<>();
+    String name = null;
+    int start = 2;
+    while (start < packet.length) {
+      int end = start;
+      while (end < packet.length && packet[end] != 0) {
+        end++;
+      }
+      String field = new String(packet, start, end - start, StandardCharsets.UTF_8);
+      if (name == null) {
+        if (field.isEmpty()) {
+          break;
+        }
+        name = field.toLowerCase();
+      } else {
+        options.put(name, field);
+        name = null;
+      }
+      start = end + 1;
+    }
+    return options;
+  }
+
+  public static byte[] packet(Map<String, String> options) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(0);
+    out.write(OPCODE);
+    for (Map.Entry<String, String> option : options.entrySet()) {
+      out.writeBytes(option.getKey().getBytes(StandardCharsets.UTF_8));
+      out.write(0);
+      out.writeBytes(option.getValue().getBytes(StandardCharsets.UTF_8));
+      out.write(0);
+    }
+    out.write(0);
+    return out.toByteArray();
+  }
+
+  /**
+   * @return the requested value clamped to [1, max], or 0 if it is missing or not a number
+   */
+  public static int intOption(Map<String, String> options, String name, int max) {
+    String value = options.get(name);
+    if (value == null) {
+      return 0;
+    }
+    try {
+      return (int) Math.max(1, Math.min(max, Long.parseLong(value.trim())));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * @return the requested value, or -1 if it is missing or not a number
+   */
+  public static long longOption(Map<String, String> options, String name) {
+    String value = options.get(name);
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Math.max(-1, Long.parseLong(value.trim()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package bgu.spl.net.impl.tftp;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Typed access to TFTP packets. A View reads the fields of a received packet
+ * where they are, nothing is copied until a string is asked for. The other
+ * methods write a packet straight into an array of its exact size.
+ *
+ * The decoder drops the 0 that ends a RRQ, WRQ, ERROR, LOGRQ, DELRQ or
+ * BCAST, so their string runs to the end of the packet. Strings are UTF-8.
+ *
+ * The client has the same file, both must stay identical, SharedSourcesTest
+ * of the server checks it.
+ */
+public class TftpPacket {
+
+  public static final short RRQ = 1;
+  public static final short WRQ = 2;
+  public static final short DATA = 3;
+  public static final short ACK = 4;
+  public static final short ERROR = 5;
+  public static final short DIRQ = 6;
+  public static final short LOGRQ = 7;
+  public static final short DELRQ = 8;
+  public static final short BCAST = 9;
+  public static final short DISC = 10;
+
+  public static final int DATA_HEADER_LENGTH = 6;
+
+  /** A flyweight over one packet at a time, reused with wrap. */
+  public static class View {
+
+    private byte[] packet;
+
+    public View wrap(byte[] packet) {
+      this.packet = packet;
+      return this;
+    }
+
+    public byte[] array() {
+      return packet;
+    }
+
+    public int opcode() {
+      return packet.length < 2 ? 0 : u16(0);
+    }
+
+    /** RRQ, WRQ, DELRQ: the file name, LOGRQ: the user name */
+    public String name() {
+      return string(2);
+    }
+
+    /** DATA, ACK: the block number as sent, its low 16 bits */
+    public int block() {
+      return opcode() == DATA ? u16(4) : u16(2);
+    }
+
+    /** DATA: the payload size the header announces */
+    public int dataLength() {
+      return u16(2);
+    }
+
+    /** DATA: the payload is array()[payloadOffset(), payloadOffset() + payloadLength()) */
+    public int payloadOffset() {
+      return DATA_HEADER_LENGTH;
+    }
+
+    public int payloadLength() {
+      return packet.length - DATA_HEADER_LENGTH;
+    }
+
+    public int errorCode() {
+      return u16(2);
+    }
+
+    public String errorMessage() {
+      return string(4);
+    }
+
+    /** BCAST: true if the file was added, false if it was deleted */
+    public boolean added() {
+      return packet[2] == 1;
+    }
+
+    public String bcastName() {
+      return string(3);
+    }
+
+    private int u16(int at) {
+      return (packet[at] & 0xff) << 8 | (packet[at + 1] & 0xff);
+    }
+
+    private String string(int from) {
+      return new String(packet, from, packet.length - from, StandardCharsets.UTF_8);
+    }
+  }
+
+  /** A bare opcode, DIRQ or DISC */
+  public static byte[] opcode(short opcode) {
+    return new byte[] { (byte) (opcode >> 8), (byte) opcode };
+  }
+
+  /** RRQ, WRQ, DELRQ or LOGRQ of name */
+  public static byte[] request(short opcode, String name) {
+    return terminated(opcode, 2, name);
+  }
+
+  public static byte[] ack(int block) {
+    return writeAck(new byte[4], block);
+  }
+
+  public static byte[] writeAck(byte[] into, int block) {
+    into[0] = 0;
+    into[1] = ACK;
+    into[2] = (byte) (block >> 8);
+    into[3] = (byte) block;
+    return into;
+  }
+
+  public static byte[] dataHeader(int size, int block) {
+    return writeDataHeader(new byte[DATA_HEADER_LENGTH], size, block);
+  }
+
+  /** writes the header of a DATA packet to the first 6 bytes of into */
+  public static byte[] writeDataHeader(byte[] into, int size, int block) {
+    into[0] = 0;
+    into[1] = DATA;
+    into[2] = (byte) (size >> 8);
+    into[3] = (byte) size;
+    into[4] = (byte) (block >> 8);
+    into[5] = (byte) block;
+    return into;
+  }
+
+  public static byte[] error(int code, String message) {
+    byte[] packet = terminated(ERROR, 4, message);
+    packet[2] = (byte) (code >> 8);
+    packet[3] = (byte) code;
+    return packet;
+  }
+
+  public static byte[] bcast(boolean added, String name) {
+    byte[] packet = terminated(BCAST, 3, name);
+    packet[2] = (byte) (added ? 1 : 0);
+    return packet;
+  }
+
+  // a packet of opcode, header - 2 bytes left for the caller, then text and a 0
+  private static byte[] terminated(short opcode, int header, String text) {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    byte[] packet = new byte[header + bytes.length + 1];
+    packet[0] = (byte) (opcode >> 8);
+    packet[1] = (byte) opcode;
+    System.arraycopy(bytes, 0, packet, header, bytes.length);
+    return packet;
+  }
+}
@@ -4,15 +4,27 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import bgu.spl.net.api.BidiMessagingProtocol;
 import bgu.spl.net.srv.ConnectionsImpl;
+import bgu.spl.net.srv.EventLog;
+import bgu.spl.net.srv.SharedFile;
 
 public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
 
@@ -20,15 +32,76 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
   String clientName = "None";
   private int connectionId;
   private ConnectionsImpl<byte[]> connections;
+  private final FileIndex fileIndex;
+  private final HotFileCache fileCache;
+  private final MappedFiles mappedFiles;
+  private final StagingArea staging;
+  private final BlobStore blobs;
+  private final TftpMetrics metrics;
+  private final EventLog log = EventLog.get();
   boolean shouldTerminate = false;
   boolean isLogged;
-  byte[] errorCodes = { 0, 5 };
   String latestFileName = "";
-  ByteBuffer dataPacket;
+  private final TftpPacket.View packet = new TftpPacket.View(); // the message being processed
   short fileReadCounter = 1;
-  short writeIndex = 1;
+  int writeIndex = 1;
   ConcurrentLinkedQueue<byte[]> fileReadQueue;
-  FileOutputStream outputStream;
+  OutputStream outputStream;
+  MessageDigest uploadDigest; // hashes the current WRQ's file as it is written
+  String uploadHash; // the hash the client sent for the current WRQ, null if none
+  Path uploadTemp; // the staging file of the current WRQ until it is published
+  String uploadToken; // the current WRQ's resume token, null if it can't be resumed
+  volatile short transferOpCode = 0; // RRQ or WRQ holding a transfer slot, 0 if none, read by the timeouts
+  String transferFileName; // the file the transfer holds the lock of
+  Object transfer; // the current transfer, a retry scheduled for an ended one does nothing
+  boolean readLocked; // RRQ: the read lock of transferFileName is held
+  BlobStore.Content uploadContent; // WRQ: the stored content until it is published
+  SharedFile readChannel; // the file of the current RRQ, if it isn't cached
+  byte[] readContent; // the cached content of the current RRQ's file
+  MappedFiles.Mapping readMapping; // the mapping of the current RRQ's file if it is large
+  long readBlocks; // number of DATA blocks of the current RRQ
+  long readOffset; // the byte of the RRQ file DATA block 1 starts at
+  Compression.Encoder readEncoder; // compresses the current RRQ's blocks, null if sent as is
+  Compression.Decoder writeDecoder; // decompresses the current WRQ's blocks, null if sent as is
+  static final int MAX_WINDOW_SIZE = 64;
+  static final int DEFAULT_BLOCK_SIZE = 512;
+  // the RRQ block counters are ints, the block after the last must fit too;
+  // that is a terabyte of 512 byte blocks
+  static final long MAX_READ_BLOCKS = Integer.MAX_VALUE - 1;
+  // a compressed WRQ is failed once it decompresses to more, 0 for no limit
+  static final long MAX_INFLATED_BYTES = Long.getLong("tftp.maxInflatedBytes", 1L << 30);
+  // how long a finished upload waits for readers of its name to let go
+  static final long PUBLISH_LOCK_WAIT_MILLIS = 1000;
+  // how soon a reactor worker tries again a lock it doesn't wait for
+  static final long LOCK_RETRY_MILLIS = 5;
+  // ACK packets never change once sent, so there is one shared per block number
+  private static final AtomicReferenceArray<byte[]> ACKS = new AtomicReferenceArray<>(1 << 16);
+  Map<String, String> requestedOptions = new HashMap<>(); // for the next RRQ/WRQ
+  long requestedOffset; // RRQ: the offset option, -1 if none
+  String requestedResume; // WRQ: the resume option, null if none
+  String requestedCompression; // the compress option, null if none
+  String requestedHash; // WRQ: the sha256 option, null if none or not a hash
+  int windowSize = 1; // DATA blocks in flight per ACK, 1 is lock-step
+  int blockSize = DEFAULT_BLOCK_SIZE; // payload of a full DATA block
+  int lastAcked; // RRQ: highest block the client acknowledged
+  int nextBlock; // RRQ: next block to send
+  int lastAckSent; // WRQ: last block we acknowledged
+  long windowSentNanos; // RRQ: when the last window was sent
+
+  public TftpProtocol(
+      FileIndex fileIndex,
+      HotFileCache fileCache,
+      MappedFiles mappedFiles,
+      StagingArea staging,
+      BlobStore blobs,
+      TftpMetrics metrics) {
+    this.fileIndex = fileIndex;
+    this.fileCache = fileCache;
+    this.mappedFiles = mappedFiles;
+    this.staging = staging;
+    this.blobs = blobs;
+    this.metrics = metrics;
+  }
 
   @Override
   public void start(
@@ -43,218 +116,249 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
 
   @Override
   public void process(byte[] message) {
-    short opCode = (short) (((short) message[0] & 0xff) << 8 | (short) (message[1] & 0xff));
-    switch (opCode) {
-      case 1: // RRQ client wants to read a file
+    packet.wrap(message);
+    metrics.request(packet.opcode());
+    switch (packet.opcode()) {
+      case TftpPacket.RRQ: // RRQ client wants to read a file
         if (!isLogged) {
           sendError((short) 6, "User isn't logged in");
           return;
         }
-        System.out.println("RRQ request received");
-        String rrqFileName = new String(message, 2, message.length - 2);
-        connections.lock.readLock().lock();
+        if (busy()) {
+          return;
+        }
+        long requested = System.nanoTime();
+        String rrqFileName = packet.name();
+        log.debug(connectionId, clientName, "RRQ", rrqFileName);
+        Map<String, String> rrqOptions = negotiateOptions();
         String filePath = basePath + File.separator + rrqFileName;
         File rrqFile = new File(filePath);
+        // checked before the read lock too, so a RRQ of a missing name doesn't
+        // hold off the upload that is about to publish it
         if (!rrqFile.exists()) {
-          connections.lock.readLock().unlock();
           sendError((short) 1, "File not found");
-        } else {
-          try {
-            FileInputStream fis = new FileInputStream(filePath);
-            FileChannel channel = fis.getChannel();
-            ByteBuffer byteBuffer = ByteBuffer.allocate(512);
-
-            int bytesRead;
-            while ((bytesRead = channel.read(byteBuffer)) != -1) {
-              byteBuffer.rewind();
-
-              byte[] chunk = new byte[bytesRead];
-              byteBuffer.get(chunk);
-
-              byte[] blockNum = new byte[] {
-                  (byte) (fileReadCounter >> 8),
-                  (byte) (fileReadCounter & 0xff),
-              };
-              byte[] packetSize = new byte[] {
-                  (byte) (bytesRead >> 8),
-                  (byte) (bytesRead & 0xff),
-              };
-              byte[] start = {
-                  0, 3, packetSize[0], packetSize[1], blockNum[0], blockNum[1],
-              };
-
-              fileReadCounter++;
-              fileReadQueue.add(concatenateArrays(start, chunk));
-              byteBuffer.clear();
-            }
-            fileReadCounter = 1;
-            fis.close();
-          } catch (IOException e) {
-            e.printStackTrace();
-            sendError((short) 0, "Problem reading the file");
-            return;
-          }
-          if (fileReadQueue.isEmpty()) {
-            byte[] start = { 0, 3, 0, 0, 0, 1 };
-            fileReadQueue.add(start);
-          }
-          connections.send(connectionId, fileReadQueue.remove());
+          return;
+        }
+        if (!startTransfer((short) 1, rrqFileName)) {
+          return;
         }
+        startRead(transfer, rrqFileName, rrqOptions, requested);
         break;
-      case 2: // WRQ client wants to write a file
+      case TftpPacket.WRQ: // WRQ client wants to write a file
         if (!isLogged) {
           sendError((short) 6, "User isn't logged in");
           return;
         }
-        System.out.println("WRQ request received");
-        String wrqFileName = new String(message, 2, message.length - 2);
-        connections.lock.writeLock().lock();
+        if (busy()) {
+          return;
+        }
+        String wrqFileName = packet.name();
+        log.debug(connectionId, clientName, "WRQ", wrqFileName);
+        Map<String, String> wrqOptions = negotiateOptions();
+        if (!startTransfer((short) 2, wrqFileName)) {
+          return;
+        }
         File wrqFile = new File(basePath, wrqFileName);
         if (wrqFile.exists()) {
-          connections.lock.writeLock().unlock();
+          endTransfer();
           sendError((short) 5, "File already exists");
+        } else if (requestedHash != null && blobs.contains(requestedHash)) {
+          publishKnownContent(wrqFileName, wrqOptions);
         } else {
+          // the upload goes to a staging file, the name is published when it completes
           try {
             latestFileName = wrqFileName;
-            boolean created = wrqFile.createNewFile();
-
-            if (!created) {
-              connections.lock.writeLock().unlock();
-              sendError((short) 0, "Problems creating the file");
+            uploadToken = null;
+            if (requestedResume != null && staging.resumable()) {
+              // an unknown or expired token starts over, at offset 0
+              if (!requestedResume.equals(TftpOptions.NEW_UPLOAD)) {
+                uploadTemp = staging.resume(requestedResume, wrqFileName);
+                uploadToken = uploadTemp != null ? requestedResume : null;
+              }
+              if (uploadToken == null) {
+                uploadTemp = staging.begin(wrqFileName);
+                uploadToken = staging.newToken();
+              }
+            } else {
+              uploadTemp = staging.begin(wrqFileName);
+            }
+            if (uploadTemp == null) {
+              uploadToken = null;
+              endTransfer();
+              sendError((short) 5, "File already exists");
               return;
             }
+            // a resumed upload goes on after the blocks it already has, its
+            // content is hashed as it is written, from the start of the file
+            uploadDigest = Files.size(uploadTemp) > 0 ? BlobStore.digestOf(uploadTemp) : BlobStore.newDigest();
+            uploadHash = requestedHash;
+            outputStream = new DigestOutputStream(new FileOutputStream(uploadTemp.toFile(), true), uploadDigest);
+            String codec = requestedCompression != null ? Compression.choose(requestedCompression) : null;
+            if (codec != null) {
+              writeDecoder = new Compression.Decoder(codec, MAX_INFLATED_BYTES);
+              wrqOptions.put(TftpOptions.COMPRESS, codec);
+            }
+            if (uploadToken != null) {
+              long offset = Files.size(uploadTemp);
+              wrqOptions.put(TftpOptions.RESUME, uploadToken);
+              wrqOptions.put(TftpOptions.OFFSET, String.valueOf(offset));
+              if (offset > 0 && log.isEnabled(EventLog.Level.INFO)) {
+                log.info(connectionId, clientName, "WRQ resumed", wrqFileName + " at " + offset);
+              }
+            }
           } catch (IOException e) {
-            connections.lock.writeLock().unlock();
+            endTransfer();
             sendError((short) 0, "Problems creating the file");
             return;
           }
 
-          byte[] ack = { 0, 4, 0, 0 };
-          try {
-            outputStream = new FileOutputStream(wrqFile);
-          } catch (IOException e) {
-            e.printStackTrace();
-          }
-
-          connections.send(connectionId, ack);
+          writeIndex = 1;
+          lastAckSent = 0;
+          // an OACK takes the place of ACK 0
+          connections.send(
+              connectionId,
+              wrqOptions.isEmpty() ? ackPacket(0) : TftpOptions.packet(wrqOptions));
         }
         break;
-      case 3: // DATA packet
+      case TftpPacket.DATA: // DATA packet
         if (!isLogged) {
           sendError((short) 6, "User isn't logged in");
           return;
         }
-        short dataBlockNum = (short) (((short) message[4] & 0xff) << 8 | (short) (message[5] & 0xff));
-        short blockLength = (short) (((short) message[2] & 0xff) << 8 | (short) (message[3] & 0xff));
-        if (dataBlockNum != writeIndex) {
-          File wrqFileData = new File(basePath, latestFileName);
-          wrqFileData.delete();
-          connections.lock.writeLock().unlock();
+        int dataBlockNum = blockNumber(packet.block(), writeIndex);
+        int blockLength = packet.dataLength();
+        if (transferOpCode != 2) {
+          sendError((short) 0, "No file is being written");
+        } else if (uploadContent != null) {
+          return; // a resend of the last block, its ACK follows the publish
+        } else if (dataBlockNum != writeIndex) {
+          if (windowSize > 1) {
+            // a block of the window went missing, ask for a resend after the last good one
+            lastAckSent = writeIndex - 1;
+            connections.send(connectionId, ackPacket(lastAckSent));
+            return;
+          }
+          endTransfer();
           sendError((short) 0, "Got the wrong block");
         } else {
           if (blockLength > 0) {
-            byte[] data = Arrays.copyOfRange(message, 6, message.length);
             try {
-              outputStream.write(data);
+              if (writeDecoder != null) {
+                writeDecoder.write(message, packet.payloadOffset(), packet.payloadLength(), outputStream);
+              } else {
+                outputStream.write(message, packet.payloadOffset(), packet.payloadLength());
+              }
+            } catch (Compression.LimitExceededException e) {
+              log.warn(connectionId, clientName, "WRQ too large", latestFileName);
+              endTransfer();
+              sendError((short) 3, "The decompressed file is too large");
+              return;
             } catch (IOException e) {
-              File wrqFileData = new File(basePath, latestFileName);
-              wrqFileData.delete();
-              connections.lock.writeLock().unlock();
+              endTransfer();
               sendError((short) 0, "Problem writing to the file");
+              return;
             }
           }
 
-          byte[] ack = { 0, 4, message[4], message[5] };
           writeIndex++;
-          connections.send(connectionId, ack);
-          if (blockLength < 512) {
-            System.out.println("File " + latestFileName + " was written successfully");
-            writeIndex = 1;
-            byte[] bCASTStart = { 0, 9, 1 };
-            String fileNameWithNullByte = latestFileName + "\0";
-            connections.bCast(
-                connectionId,
-                concatenateArrays(bCASTStart, fileNameWithNullByte.getBytes()));
-            connections.lock.writeLock().unlock();
+          if (blockLength < blockSize && writeDecoder != null && !writeDecoder.finished()) {
+            endTransfer();
+            sendError((short) 0, "The compressed data ended early");
+            return;
+          }
+          if (blockLength < blockSize) {
+            // acknowledged once published, see publishUpload
+            storeUpload(dataBlockNum);
+            return;
+          }
+          // with a window only its last block, or the last block of the file, is acknowledged
+          if (dataBlockNum - lastAckSent >= windowSize) {
+            lastAckSent = dataBlockNum;
+            connections.send(connectionId, ackPacket(dataBlockNum));
           }
         }
         break;
-      case 4: // ACK packet
+      case TftpPacket.ACK: // ACK packet
         if (!isLogged) {
           sendError((short) 6, "User isn't logged in");
           return;
         }
-        System.out.println("Ack packet received");
-        short ackBlockNum = (short) (((short) message[2] & 0x00ff) << 8 | (short) (message[3] & 0x00ff));
+        log.debug(connectionId, clientName, "ACK", null);
+        short ackBlockNum = (short) packet.block();
+        if (transferOpCode == 1) { // RRQ
+          if (!readLocked) {
+            return; // nothing was sent yet, the RRQ waits for its lock
+          }
+          int acked = blockNumber(ackBlockNum & 0xffff, nextBlock - 1);
+          // lock-step needs the block just sent, a window takes any block sent
+          // and not yet acknowledged and rewinds to the one after it
+          boolean expected = windowSize == 1
+              ? acked == nextBlock - 1
+              : acked >= lastAcked && acked < nextBlock;
+          if (!expected) {
+            sendError((short) 0, "Got the wrong block");
+            endRead();
+            return;
+          }
+          metrics.ackRoundTrip.recordSince(windowSentNanos);
+          if (acked == readBlocks) {
+            endRead();
+            return;
+          }
+          lastAcked = acked;
+          nextBlock = acked + 1;
+          if (readEncoder != null) {
+            readEncoder.acknowledged(acked);
+          }
+          sendWindow();
+          break;
+        }
         if (fileReadQueue.isEmpty()) {
           fileReadCounter = 1;
-          connections.lock.readLock().unlock();
+          endRead();
           return;
         }
         if (ackBlockNum != fileReadCounter) {
           fileReadQueue.clear();
           fileReadCounter = 1;
           sendError((short) 0, "Got the wrong block");
-          connections.lock.readLock().unlock();
+          endRead();
           return;
         }
         connections.send(connectionId, fileReadQueue.remove());
         fileReadCounter++;
         break;
-      case 5: // ERROR packet
+      case TftpPacket.ERROR: // ERROR packet
         if (!isLogged) {
           sendError((short) 6, "User isn't logged in");
           return;
         }
-        System.out.println("Error packet received");
-        String errorMsg = new String(message, 4, message.length - 4);
-        short errorCode = (short) (((short) message[2] & 0xff) << 8 | (short) (message[3] & 0xff));
-        System.err.println("Error " + errorCode + ": " + errorMsg);
+        if (log.isEnabled(EventLog.Level.WARN)) {
+          log.warn(connectionId, clientName, "ERROR received", packet.errorCode() + " " + packet.errorMessage());
+        }
         fileReadQueue.clear();
         fileReadCounter = 1;
+        endTransfer();
         break;
-      case 6: // DIRQ request client wants to get the list of files
+      case TftpPacket.DIRQ: // DIRQ request client wants to get the list of files
         if (!isLogged) {
           sendError((short) 6, "User isn't logged in");
           return;
         }
-        System.out.println("DIRQ request received");
-        connections.lock.readLock().lock();
-        List<String> fileNamesList = getFileNames();
-        StringBuilder sb = new StringBuilder();
-        for (String fileName : fileNamesList) {
-          sb.append(fileName).append("\0");
-        }
-
-        byte[] byteArray = sb.toString().getBytes();
-
-        List<byte[]> splitIntoChunks = splitByteArray(byteArray);
-
-        for (int i = 0; i < splitIntoChunks.size(); i++) {
-          short packetSizeShort = (short) splitIntoChunks.get(i).length;
-          byte[] packetSizeBytes = new byte[] {
-              (byte) (packetSizeShort >> 8),
-              (byte) (packetSizeShort & 0xff),
-          };
-          byte[] indexByte = new byte[] {
-              (byte) ((short) (i + 1) >> 8),
-              (byte) ((i + 1) & 0xff),
-          };
-          byte[] start = {
-              0, 3, packetSizeBytes[0], packetSizeBytes[1], indexByte[0], indexByte[1],
-          };
-          byte[] msg = concatenateArrays(start, splitIntoChunks.get(i));
-          fileReadQueue.add(msg);
+        if (busy()) {
+          return;
         }
+        log.debug(connectionId, clientName, "DIRQ", null);
+        // the packets are cached by the index until the next change
+        fileReadQueue.addAll(fileIndex.dirqPackets());
         connections.send(connectionId, fileReadQueue.remove());
         break;
-      case 7: // LOGRQ client wants to logIn
+      case TftpPacket.LOGRQ: // LOGRQ client wants to logIn
         if (isLogged) {
           sendError((short) 7, "User is already logged in");
           return;
         } else {
-          System.out.println("LOGRQ request received");
-          String userName = new String(message, 2, message.length - 2);
+          String userName = packet.name();
           if (connections.checkIfLoggedin(userName) != null) {
             sendError((short) 0, "The username you gave is already logged in");
             return;
@@ -262,55 +366,68 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
             isLogged = true;
             connections.logIn(userName, connectionId);
             clientName = userName;
-            byte[] ack = { 0, 4, 0, 0 };
-            connections.send(connectionId, ack);
+            log.info(connectionId, clientName, "login", null);
+            connections.send(connectionId, ackPacket(0));
           }
         }
         break;
-      case 8: // DELRQ client wants to delete a file
+      case TftpPacket.DELRQ: // DELRQ client wants to delete a file
         if (!isLogged) {
           sendError((short) 6, "User isn't logged in");
           return;
         }
-        System.out.println("DELRQ request received");
-        connections.lock.writeLock().lock();
-        String delrqFileName = new String(message, 2, message.length - 2);
+        String delrqFileName = packet.name();
+        log.debug(connectionId, clientName, "DELRQ", delrqFileName);
+        if (!connections.fileLocks.tryLockWrite(delrqFileName)) {
+          sendError((short) 2, "The file is in use, try again later");
+          return;
+        }
         File delrqFile = new File(basePath, delrqFileName);
         if (!delrqFile.exists()) {
-          connections.lock.writeLock().unlock();
+          connections.fileLocks.unlockWrite(delrqFileName);
           sendError((short) 1, "File not found");
           return;
         } else {
-          if (!delrqFile.delete()) {
-            connections.lock.writeLock().unlock();
+          boolean deleted;
+          String delrqHash = blobs.hashOf(delrqFileName);
+          try {
+            // its stored content goes with its last name
+            deleted = blobs.delete(delrqFileName);
+          } catch (IOException e) {
+            deleted = false;
+          }
+          if (!deleted) {
+            connections.fileLocks.unlockWrite(delrqFileName);
             sendError((short) 0, "Error deleting the file");
             return;
           }
-          byte[] bCastStart = { 0, 9, 0 };
-          String delrqFileNameWithNullByte = delrqFileName + "\0";
-          byte[] ack = { 0, 4, 0, 0 };
-          connections.send(connectionId, ack);
-          connections.bCast(
-              connectionId,
-              concatenateArrays(bCastStart, delrqFileNameWithNullByte.getBytes()));
-          connections.lock.writeLock().unlock();
+          invalidate(delrqFileName, delrqHash);
+          fileIndex.remove(delrqFileName);
+          connections.send(connectionId, ackPacket(0));
+          connections.fileLocks.unlockWrite(delrqFileName);
+          connections.bCast(connectionId, delrqFileName, TftpPacket.bcast(false, delrqFileName));
         }
         break;
-      case 10: // DISC request client wants to logOut
+      case TftpPacket.DISC: // DISC request client wants to logOut
         if (!isLogged) {
           sendError((short) 6, "User isn't logged in");
           return;
         }
-        System.out.println("DISC request received");
+        log.info(connectionId, clientName, "logout", null);
         isLogged = false;
         connections.logOut(clientName);
         clientName = "None";
-        byte[] ack = { 0, 4, 0, 0 };
-        System.out.println("ACK send before terminate");
-        connections.send(connectionId, ack);
+        connections.send(connectionId, ackPacket(0));
         connections.disconnect(connectionId);
         shouldTerminate = true;
         break;
+      case TftpOptions.OPCODE: // options for the RRQ/WRQ that follows
+        if (!isLogged) {
+          sendError((short) 6, "User isn't logged in");
+          return;
+        }
+        requestedOptions = TftpOptions.parse(message);
+        break;
       default:
         // Handle unknown opCode
         break;
@@ -322,77 +439,554 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
     return shouldTerminate;
   }
 
-  public static byte[] concatenateArrays(byte[] array1, byte[] array2) {
-    // Calculate the size of the concatenated array
-    int totalLength = array1.length + array2.length;
-
-    // Create a new byte array to hold the concatenated dataPacket
-    byte[] result = new byte[totalLength];
-
-    // Copy the contents of the first array into the result array
-    System.arraycopy(array1, 0, result, 0, array1.length);
-
-    // Copy the contents of the second array into the result array
-    System.arraycopy(array2, 0, result, array1.length, array2.length);
+  @Override
+  public boolean isTransferring() {
+    return transferOpCode != 0;
+  }
 
-    return result;
+  // the client is gone, e.g. closed by a timeout, give back what it held,
+  // a resumable upload is kept for the client to resume
+  @Override
+  public void connectionClosed() {
+    endTransfer(true);
+    fileReadQueue.clear();
+    if (isLogged) {
+      log.info(connectionId, clientName, "disconnected", null);
+      isLogged = false;
+      connections.logOut(clientName);
+    }
   }
 
   // functions that sends Errors to users
   public void sendError(short opCode, String message) {
-    byte[] opCodeByteArray = new byte[] {
-        (byte) (opCode >> 8),
-        (byte) (opCode & 0xff),
-    };
-    byte[] errorStart = concatenateArrays(errorCodes, opCodeByteArray);
-    byte[] errorMsg = new String(message + new String(new byte[] { 0 }))
-        .getBytes();
-    connections.send(connectionId, concatenateArrays(errorStart, errorMsg));
+    log.warn(connectionId, clientName, "ERROR sent", message);
+    connections.send(connectionId, TftpPacket.error(opCode, message));
   }
 
-  public List<String> getFileNames() {
-    List<String> fileNamesList = new ArrayList<>();
-    File folder = new File(basePath);
-
-    // Check if the folder exists and is a directory
-    if (folder.exists() && folder.isDirectory()) {
-      // Get all files in the folder
-      File[] files = folder.listFiles();
-      if (files != null) {
-        for (File file : files) {
-          // Add file names to the list
-          fileNamesList.add(file.getName());
+  // a connection runs one RRQ, WRQ or DIRQ at a time, a second one would take
+  // over the state of the first and leak its lock, slot and files
+  private boolean busy() {
+    if (transferOpCode == 0 && fileReadQueue.isEmpty()) {
+      return false;
+    }
+    sendError((short) 0, "A transfer is already in progress");
+    return true;
+  }
+
+  // takes a transfer slot for a RRQ (read) or WRQ (write) of fileName, the
+  // lock on it is taken after, see startRead and publishUpload
+  private boolean startTransfer(short opCode, String fileName) {
+    if (!connections.admission.tryAcquireTransfer()) {
+      if (log.isEnabled(EventLog.Level.WARN)) {
+        log.warn(connectionId, clientName, "transfer rejected", connections.admission.toString());
+      }
+      sendError((short) 0, "Server is busy, too many transfers in progress");
+      return false;
+    }
+    transferOpCode = opCode;
+    transferFileName = fileName;
+    transfer = new Object();
+    log.info(connectionId, clientName, opCode == 1 ? "RRQ start" : "WRQ start", fileName);
+    metrics.transfer(opCode, 1);
+    return true;
+  }
+
+  // the rest of a RRQ, once it holds the read lock of fileName. A writer holds
+  // it only for a moment, still a reactor worker doesn't wait for it, the RRQ
+  // goes on in a later task of the connection
+  private void startRead(Object started, String fileName, Map<String, String> options, long requested) {
+    if (transfer != started) {
+      return; // ended meanwhile, e.g. the connection closed
+    }
+    if (!connections.fileLocks.tryLockRead(fileName)) {
+      if (connections.schedule(
+          connectionId, () -> startRead(started, fileName, options, requested), LOCK_RETRY_MILLIS)) {
+        return;
+      }
+      // a connection with a thread of its own waits for it
+      connections.fileLocks.lockRead(fileName);
+    }
+    readLocked = true;
+    String filePath = basePath + File.separator + fileName;
+    File file = new File(filePath);
+    if (!file.exists()) {
+      endTransfer();
+      sendError((short) 1, "File not found");
+    } else {
+      try {
+        // large files are sent from a shared mapping, hot files from memory
+        // and the others straight from the disk; names of the same stored
+        // content share its mapping and cache entry
+        String contentKey = blobs.hashOf(fileName);
+        if (contentKey == null) {
+          contentKey = fileName;
+        }
+        if (mappedFiles.shouldMap(file.length())) {
+          readMapping = mappedFiles.acquire(contentKey, file.toPath());
+        } else {
+          readContent = fileCache.get(contentKey, file.toPath());
         }
+        long size;
+        if (readMapping != null) {
+          size = readMapping.size();
+        } else if (readContent != null) {
+          size = readContent.length;
+        } else {
+          readChannel = new SharedFile(new FileInputStream(filePath).getChannel());
+          size = readChannel.size();
+        }
+        // a client with part of the file gets the rest, an offset past
+        // the end, e.g. of a file that changed, is ignored
+        readOffset = requestedOffset > 0 && requestedOffset <= size ? requestedOffset : 0;
+        if (readOffset > 0) {
+          options.put(TftpOptions.OFFSET, String.valueOf(readOffset));
+          if (log.isEnabled(EventLog.Level.INFO)) {
+            log.info(connectionId, clientName, "RRQ resumed", fileName + " at " + readOffset);
+          }
+        }
+        // the last block is shorter than blockSize, possibly empty, to end the file
+        readBlocks = (size - readOffset) / blockSize + 1;
+        if (readBlocks > MAX_READ_BLOCKS) {
+          endTransfer();
+          sendError((short) 0, "The file has too many blocks, ask for a larger blksize");
+          return;
+        }
+        String codec = requestedCompression != null ? Compression.choose(requestedCompression) : null;
+        if (codec != null && Compression.worthCompressing(this::readFile, readOffset, size)) {
+          readEncoder = new Compression.Encoder(codec, this::readFile, readOffset, size, blockSize);
+          // the number of compressed blocks is known once the last is made
+          readBlocks = MAX_READ_BLOCKS;
+          options.put(TftpOptions.COMPRESS, codec);
+        }
+      } catch (IOException e) {
+        log.error(connectionId, "Problem reading " + fileName, e);
+        endTransfer();
+        sendError((short) 0, "Problem reading the file");
+        return;
+      }
+      if (!options.isEmpty()) {
+        connections.send(connectionId, TftpOptions.packet(options));
       }
+      // blocks are read on demand, a window per ACK, so nothing is buffered
+      lastAcked = 0;
+      nextBlock = 1;
+      sendWindow();
+      metrics.firstData.recordSince(requested);
+    }
+  }
+
+  private void endTransfer() {
+    endTransfer(false);
+  }
+
+  private void endTransfer(boolean keepUpload) {
+    if (transferOpCode == 0) {
+      return;
+    }
+    if (transferOpCode == 1) {
+      closeReadChannel();
+      if (readLocked) {
+        connections.fileLocks.unlockRead(transferFileName);
+        readLocked = false;
+      }
+    } else {
+      closeUpload(keepUpload);
+    }
+    endCompression();
+    log.info(connectionId, clientName, transferOpCode == 1 ? "RRQ end" : "WRQ end", transferFileName);
+    metrics.transfer(transferOpCode, -1);
+    transferOpCode = 0;
+    transfer = null;
+    connections.admission.releaseTransfer();
+  }
+
+  // drops what the cache and the mappings hold for a name that changed. A RRQ
+  // keys a stored content by its hash, shared by its names, so that is
+  // dropped when its last name is gone
+  private void invalidate(String name, String hash) {
+    fileCache.invalidate(name);
+    mappedFiles.invalidate(name);
+    if (hash != null && !blobs.contains(hash)) {
+      fileCache.invalidate(hash);
+      mappedFiles.invalidate(hash);
+    }
+  }
+
+  // stores the finished upload, whose last block is lastBlock, and publishes it
+  private void storeUpload(int lastBlock) {
+    try {
+      outputStream.close();
+      String hash = HexFormat.of().formatHex(uploadDigest.digest());
+      if (uploadHash != null && !uploadHash.equals(hash)) {
+        endTransfer();
+        sendError((short) 0, "The file doesn't match its hash");
+        return;
+      }
+      // stored before the name is locked, that may copy the file; the name
+      // stays reserved until the content is published or discarded
+      uploadContent = blobs.store(uploadTemp, hash);
+      uploadTemp = null;
+    } catch (IOException e) {
+      endTransfer();
+      sendError((short) 0, "Problem writing to the file");
+      return;
+    }
+    publishUpload(transfer, lastBlock, System.nanoTime() + PUBLISH_LOCK_WAIT_MILLIS * 1_000_000);
+  }
+
+  // moves the stored upload to its name and acknowledges its last block, it
+  // fails if the name was taken meanwhile
+  private void publishUpload(Object started, int lastBlock, long deadline) {
+    if (transfer != started) {
+      return; // ended meanwhile, e.g. the connection closed
+    }
+    switch (lockToPublish(latestFileName, deadline, () -> publishUpload(started, lastBlock, deadline))) {
+      case RETRYING:
+        return;
+      case FAILED:
+        endTransfer();
+        sendLockedError(latestFileName);
+        return;
+      default:
+        break;
+    }
+    try {
+      if (new File(basePath, latestFileName).exists()) {
+        endTransfer();
+        sendError((short) 5, "File already exists");
+        return;
+      }
+      BlobStore.Content content = uploadContent;
+      uploadContent = null;
+      staging.publish(latestFileName, content, blobs);
+      invalidate(latestFileName, content.hash());
+    } catch (IOException e) {
+      endTransfer();
+      sendError((short) 0, "Problem writing to the file");
+      return;
+    } finally {
+      connections.fileLocks.unlockWrite(latestFileName);
+    }
+    endTransfer();
+    lastAckSent = lastBlock;
+    connections.send(connectionId, ackPacket(lastBlock));
+    log.info(connectionId, clientName, "WRQ published", latestFileName);
+    writeIndex = 1;
+    fileIndex.add(latestFileName);
+    // keyed by file name, so a burst of events for one file sends only the last
+    connections.bCast(connectionId, latestFileName, TftpPacket.bcast(true, latestFileName));
+  }
+
+  // the outcome of lockToPublish
+  private enum PublishLock { TAKEN, RETRYING, FAILED }
+
+  // takes the write lock to publish name. It is held by the readers of
+  // name, a name that doesn't exist has none for long, e.g. a RRQ that is
+  // about to find it missing, so they are waited for until deadline: a
+  // reactor worker doesn't wait, retry runs in a later task of the connection
+  private PublishLock lockToPublish(String name, long deadline, Runnable retry) {
+    if (connections.fileLocks.tryLockWrite(name)) {
+      return PublishLock.TAKEN;
+    }
+    long remaining = deadline - System.nanoTime();
+    if (remaining <= 0 || new File(basePath, name).exists()) {
+      return PublishLock.FAILED;
+    }
+    if (connections.schedule(connectionId, retry, LOCK_RETRY_MILLIS)) {
+      return PublishLock.RETRYING;
+    }
+    // a connection with a thread of its own waits for it
+    return connections.fileLocks.tryLockWrite(name, TimeUnit.NANOSECONDS.toMillis(remaining) + 1)
+        ? PublishLock.TAKEN
+        : PublishLock.FAILED;
+  }
+
+  // the error of a publish that didn't get the write lock of name
+  private void sendLockedError(String name) {
+    if (new File(basePath, name).exists()) {
+      sendError((short) 5, "File already exists");
+    } else {
+      sendError((short) 2, "The file is in use, try again later");
+    }
+  }
+
+  // closes the current WRQ's file, its staging file is dropped unless it was
+  // published or is kept to be resumed
+  private void closeUpload(boolean keep) {
+    if (outputStream != null) {
+      try {
+        outputStream.close();
+      } catch (IOException e) {}
+      outputStream = null;
+    }
+    if (uploadTemp != null && keep && uploadToken != null) {
+      log.info(connectionId, clientName, "WRQ kept to resume", latestFileName);
+      staging.suspend(uploadToken, latestFileName, uploadTemp);
+    } else if (uploadTemp != null) {
+      staging.abort(latestFileName, uploadTemp);
+    }
+    if (uploadContent != null) {
+      staging.discard(latestFileName, uploadContent, blobs);
+      uploadContent = null;
+    }
+    uploadTemp = null;
+    uploadToken = null;
+    uploadDigest = null;
+    uploadHash = null;
+  }
+
+  // a WRQ of content the server stores already, sent as its hash only: the
+  // name is given the stored content and the OACK ends the transfer
+  private void publishKnownContent(String name, Map<String, String> accepted) {
+    if (!staging.reserve(name)) {
+      endTransfer();
+      sendError((short) 5, "File already exists");
+      return;
+    }
+    // taken before the name is locked, that may copy the file
+    try {
+      uploadContent = blobs.share(requestedHash);
+    } catch (IOException e) {
+      log.error(connectionId, "Problem linking " + name, e);
+    }
+    if (uploadContent == null) {
+      staging.release(name);
+      endTransfer();
+      sendError((short) 0, "Problem storing the file");
+      return;
+    }
+    // so closeUpload discards the content if it isn't published
+    latestFileName = name;
+    publishShared(transfer, accepted, System.nanoTime() + PUBLISH_LOCK_WAIT_MILLIS * 1_000_000);
+  }
+
+  // gives the content of publishKnownContent its name and sends the OACK
+  private void publishShared(Object started, Map<String, String> accepted, long deadline) {
+    if (transfer != started) {
+      return; // ended meanwhile, e.g. the connection closed
+    }
+    String name = latestFileName;
+    switch (lockToPublish(name, deadline, () -> publishShared(started, accepted, deadline))) {
+      case RETRYING:
+        return;
+      case FAILED:
+        endTransfer();
+        sendLockedError(name);
+        return;
+      default:
+        break;
+    }
+    boolean exists = false;
+    boolean linked = false;
+    try {
+      exists = new File(basePath, name).exists();
+      if (!exists) {
+        BlobStore.Content content = uploadContent;
+        uploadContent = null;
+        staging.publish(name, content, blobs);
+        linked = true;
+      }
+    } catch (IOException e) {
+      log.error(connectionId, "Problem linking " + name, e);
+    } finally {
+      connections.fileLocks.unlockWrite(name);
+    }
+    endTransfer();
+    if (exists) {
+      sendError((short) 5, "File already exists");
+      return;
+    }
+    if (!linked) {
+      sendError((short) 0, "Problem storing the file");
+      return;
+    }
+    invalidate(name, requestedHash);
+    accepted.put(TftpOptions.HASH, requestedHash);
+    connections.send(connectionId, TftpOptions.packet(accepted));
+    log.info(connectionId, clientName, "WRQ deduplicated", name);
+    fileIndex.add(name);
+    connections.bCast(connectionId, name, TftpPacket.bcast(true, name));
+  }
+
+  // takes the options sent before this RRQ/WRQ, returns the ones accepted so
+  // far, the OACK to send if the transfer starts, empty if there is none
+  private Map<String, String> negotiateOptions() {
+    Map<String, String> accepted = new LinkedHashMap<>();
+    // a client that is behind on reading the replies gets no more in flight
+    int maxWindow = connections.isBackpressured(connectionId) ? 1 : MAX_WINDOW_SIZE;
+    windowSize = TftpOptions.intOption(requestedOptions, TftpOptions.WINDOW_SIZE, maxWindow);
+    if (windowSize > 0) {
+      accepted.put(TftpOptions.WINDOW_SIZE, String.valueOf(windowSize));
     } else {
-      System.out.println("Folder does not exist or is not a directory.");
+      windowSize = 1;
     }
-    if (fileNamesList.size() == 0) {
-      fileNamesList.add("No files in the server");
+    blockSize = TftpOptions.intOption(requestedOptions, TftpOptions.BLOCK_SIZE, TftpOptions.MAX_BLOCK_SIZE);
+    if (blockSize > 0) {
+      blockSize = Math.max(TftpOptions.MIN_BLOCK_SIZE, blockSize);
+      accepted.put(TftpOptions.BLOCK_SIZE, String.valueOf(blockSize));
+    } else {
+      blockSize = DEFAULT_BLOCK_SIZE;
+    }
+    // resuming is settled by the RRQ/WRQ, it depends on the file
+    requestedOffset = TftpOptions.longOption(requestedOptions, TftpOptions.OFFSET);
+    requestedResume = requestedOptions.get(TftpOptions.RESUME);
+    requestedCompression = requestedOptions.get(TftpOptions.COMPRESS);
+    requestedHash = requestedOptions.get(TftpOptions.HASH);
+    if (requestedHash != null) {
+      requestedHash = requestedHash.trim().toLowerCase();
+      if (!requestedHash.matches("[0-9a-f]{64}")) {
+        requestedHash = null;
+      }
     }
-    return fileNamesList;
+    requestedOptions = new HashMap<>();
+    return accepted;
   }
 
-  public static List<byte[]> splitByteArray(byte[] byteArray) {
-    int chunkSize = 512;
-    int numChunks = (byteArray.length + chunkSize - 1) / chunkSize;
-    List<byte[]> chunks = new ArrayList<>();
+  // sends the RRQ blocks from nextBlock up to the end of the current window
+  private void sendWindow() {
+    windowSentNanos = System.nanoTime();
+    while (transferOpCode == 1 && nextBlock <= readBlocks && nextBlock - lastAcked <= windowSize) {
+      sendFileBlock(nextBlock);
+      nextBlock++;
+    }
+  }
 
-    for (int i = 0; i < numChunks - 1; i++) {
-      int startIndex = i * chunkSize;
-      int endIndex = startIndex + chunkSize;
-      byte[] chunk = new byte[chunkSize];
-      System.arraycopy(byteArray, startIndex, chunk, 0, chunkSize);
-      chunks.add(chunk);
+  // sends block number block of the RRQ file, its payload is a slice of the
+  // mapping, comes from the cache or goes from the file to the socket
+  private void sendFileBlock(int block) {
+    if (readEncoder != null) {
+      sendCompressedBlock(block);
+      return;
+    }
+    long position = readOffset + (block - 1L) * blockSize;
+    if (readMapping != null) {
+      int size = (int) Math.max(0, Math.min(blockSize, readMapping.size() - position));
+      byte[] start = TftpPacket.dataHeader(size, block);
+      connections.sendBuffer(connectionId, start, readMapping.slice(position, size));
+      return;
     }
+    if (readContent != null) {
+      int size = (int) Math.max(0, Math.min(blockSize, readContent.length - position));
+      byte[] start = TftpPacket.dataHeader(size, block);
+      // the cached content is never changed, so the payload isn't copied
+      connections.sendBuffer(connectionId, start, ByteBuffer.wrap(readContent, (int) position, size));
+      return;
+    }
+    int size = 0;
+    try {
+      size = (int) Math.max(0, Math.min(blockSize, readChannel.size() - position));
+    } catch (IOException e) {}
+    byte[] start = TftpPacket.dataHeader(size, block);
+    connections.sendFile(connectionId, start, readChannel, position, size);
+  }
 
-    // Last chunk
-    int lastChunkStart = (numChunks - 1) * chunkSize;
-    int lastChunkSize = byteArray.length - lastChunkStart;
-    byte[] lastChunk = new byte[lastChunkSize];
-    System.arraycopy(byteArray, lastChunkStart, lastChunk, 0, lastChunkSize);
-    chunks.add(lastChunk);
+  // the payload is copied out of the encoder, which reuses its buffer
+  private void sendCompressedBlock(int block) {
+    ByteBuffer payload;
+    try {
+      payload = readEncoder.block(block);
+    } catch (IOException e) {
+      log.error(connectionId, "Problem compressing " + transferFileName, e);
+      endTransfer();
+      sendError((short) 0, "Problem reading the file");
+      return;
+    }
+    int size = payload.remaining();
+    if (size < blockSize) {
+      readBlocks = block;
+    } else if (block == MAX_READ_BLOCKS) {
+      // compressed, the file took more blocks than the counters hold
+      endTransfer();
+      sendError((short) 0, "The file has too many blocks, ask for a larger blksize");
+      return;
+    }
+    byte[] data = Arrays.copyOf(TftpPacket.dataHeader(size, block), TftpPacket.DATA_HEADER_LENGTH + size);
+    payload.get(data, TftpPacket.DATA_HEADER_LENGTH, size);
+    connections.send(connectionId, data);
+  }
+
+  // reads the RRQ file from the mapping, the cache or the disk
+  private int readFile(ByteBuffer dst, long position) throws IOException {
+    if (readChannel != null) {
+      return readChannel.channel().read(dst, position);
+    }
+    long size = readMapping != null ? readMapping.size() : readContent.length;
+    int length = (int) Math.min(dst.remaining(), size - position);
+    if (length <= 0) {
+      return -1;
+    }
+    if (readMapping != null) {
+      dst.put(readMapping.slice(position, length));
+    } else {
+      dst.put(readContent, (int) position, length);
+    }
+    return length;
+  }
+
+  // logs how much the transfer's compression saved
+  private void endCompression() {
+    long fileBytes;
+    long compressedBytes;
+    if (readEncoder != null) {
+      fileBytes = readEncoder.fileBytes();
+      compressedBytes = readEncoder.compressedBytes();
+      readEncoder.end();
+      readEncoder = null;
+    } else if (writeDecoder != null) {
+      fileBytes = writeDecoder.fileBytes();
+      compressedBytes = writeDecoder.compressedBytes();
+      writeDecoder.end();
+      writeDecoder = null;
+    } else {
+      return;
+    }
+    metrics.compressed(fileBytes, compressedBytes);
+    if (log.isEnabled(EventLog.Level.INFO)) {
+      log.info(
+          connectionId,
+          clientName,
+          "compressed",
+          transferFileName + " " + fileBytes + " to " + compressedBytes + " bytes");
+    }
+  }
+
+  private void closeReadChannel() {
+    readContent = null;
+    if (readMapping != null) {
+      mappedFiles.release(readMapping);
+      readMapping = null;
+    }
+    // blocks still queued for sending keep the file open until they are written
+    if (readChannel != null) {
+      readChannel.release();
+      readChannel = null;
+    }
+  }
+
+  // the last ACK of a RRQ or a DIRQ, only a RRQ holds a lock
+  private void endRead() {
+    if (transferOpCode == 1) {
+      endTransfer();
+    }
+  }
+
+  // the shared ACK of block, only its low 16 bits go on the wire
+  static byte[] ackPacket(int block) {
+    int wire = block & 0xffff;
+    byte[] ack = ACKS.get(wire);
+    if (ack == null) {
+      ack = TftpPacket.ack(wire);
+      ACKS.set(wire, ack);
+    }
+    return ack;
+  }
 
-    return chunks;
+  /**
+   * Block numbers are 16 bits on the wire and roll over from 65535 to 0, so
+   * files with more blocks still transfer. Returns the full block number
+   * whose low 16 bits are wire and that is closest to expected.
+   */
+  static int blockNumber(int wire, int expected) {
+    return expected + (short) (wire - expected);
   }
 }
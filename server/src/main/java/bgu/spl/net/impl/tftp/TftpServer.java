@@ -1,7 +1,12 @@
 package bgu.spl.net.impl.tftp;
 
+import bgu.spl.net.srv.AdmissionControl;
 import bgu.spl.net.srv.ConnectionsImpl;
 import bgu.spl.net.srv.Server;
+import bgu.spl.net.srv.SlowConsumerPolicy;
+import java.io.IOException;
+import java.nio.file.Paths;
+import javax.management.JMException;
 
 public class TftpServer {
 
@@ -11,13 +16,97 @@ public class TftpServer {
       System.out.println("No arguments provided. setting port to 7777");
       args=new String[]{"7777"};
   }
-    Server
-      .threadPerClient(
-        Integer.valueOf(args[0]), //port
-        () -> new TftpProtocol(), //protocol factory
-        () -> new TftpEncoderDecoder(), //message encoder decoder factory
-        new ConnectionsImpl<byte[]>()
-      )
-      .serve();
+    // optional second argument: "tpc" (thread per client, default),
+    // "virtual" (virtual thread per client) or "reactor"
+    String mode = args.length > 1 ? args[1] : "tpc";
+    // limits are read from -Dtftp.maxConnections, -Dtftp.maxTransfers and
+    // -Dtftp.acceptTimeoutMillis, 0 means unlimited
+    // -Dtftp.slowConsumerPolicy=DROP (default) or DISCONNECT picks what a
+    // broadcast does with a client that is behind on reading
+    // a client is disconnected after -Dtftp.transferTimeoutMillis of silence
+    // during a transfer, and after -Dtftp.idleTimeoutMillis between transfers,
+    // which is off by default as a user may leave the client idle; 0 never does
+    ConnectionsImpl<byte[]> connections = new ConnectionsImpl<>(
+      new AdmissionControl<>(
+        Integer.getInteger("tftp.maxConnections", 0),
+        Integer.getInteger("tftp.maxTransfers", 0),
+        Long.getLong("tftp.acceptTimeoutMillis", 0),
+        TftpPacket.error(0, "Server is busy, try again later")
+      ),
+      SlowConsumerPolicy.valueOf(
+        System.getProperty("tftp.slowConsumerPolicy", "DROP").toUpperCase()
+      ),
+      Long.getLong("tftp.idleTimeoutMillis", 0),
+      Long.getLong("tftp.transferTimeoutMillis", 30_000)
+    );
+    connections.start();
+    // one index of the files for all the connections
+    FileIndex fileIndex = new FileIndex(
+      Paths.get(System.getProperty("user.dir"), "Flies"),
+      connections.fileLocks::isWriteLocked
+    );
+    fileIndex.start();
+    // -Dtftp.cacheBytes bounds the contents of hot files kept in memory, 0 disables it
+    HotFileCache fileCache = new HotFileCache(Long.getLong("tftp.cacheBytes", 64 << 20));
+    // files of -Dtftp.mmapThreshold bytes or more are served from a shared mapping
+    MappedFiles mappedFiles = new MappedFiles(Long.getLong("tftp.mmapThreshold", 8 << 20));
+    // uploads are written here and renamed into Flies when complete, one cut
+    // off can be resumed for -Dtftp.resumeRetentionMillis, 0 never keeps it
+    StagingArea staging;
+    try {
+      staging = new StagingArea(
+        Paths.get(System.getProperty("user.dir"), "staging"),
+        Long.getLong("tftp.resumeRetentionMillis", 600_000)
+      );
+    } catch (IOException e) {
+      System.out.println("Can't create the staging directory: " + e);
+      return;
+    }
+    // each content uploaded is stored once, its names in Flies link to it
+    BlobStore blobs;
+    try {
+      blobs = new BlobStore(
+        Paths.get(System.getProperty("user.dir"), "Flies"),
+        Paths.get(System.getProperty("user.dir"), "blobs")
+      );
+    } catch (IOException e) {
+      System.out.println("Can't open the blob store: " + e);
+      return;
+    }
+    // counters and latencies for JMX, e.g. jconsole
+    TftpMetrics metrics = new TftpMetrics(connections, fileCache, blobs);
+    try {
+      metrics.register();
+    } catch (JMException e) {
+      System.out.println("Metrics won't be shown over JMX: " + e);
+    }
+    Server<byte[]> server;
+    if (mode.equals("reactor")) {
+      server =
+        Server.reactor(
+          Runtime.getRuntime().availableProcessors(),
+          Integer.valueOf(args[0]), //port
+          () -> new TftpProtocol(fileIndex, fileCache, mappedFiles, staging, blobs, metrics), //protocol factory
+          () -> new TftpEncoderDecoder(), //message encoder decoder factory
+          connections
+        );
+    } else if (mode.equals("virtual")) {
+      server =
+        Server.virtualThreadPerClient(
+          Integer.valueOf(args[0]), //port
+          () -> new TftpProtocol(fileIndex, fileCache, mappedFiles, staging, blobs, metrics), //protocol factory
+          () -> new TftpEncoderDecoder(), //message encoder decoder factory
+          connections
+        );
+    } else {
+      server =
+        Server.threadPerClient(
+          Integer.valueOf(args[0]), //port
+          () -> new TftpProtocol(fileIndex, fileCache, mappedFiles, staging, blobs, metrics), //protocol factory
+          () -> new TftpEncoderDecoder(), //message encoder decoder factory
+          connections
+        );
+    }
+    server.serve();
   }
 }
@@ -0,0 +1,100 @@
+package bgu.spl.net.srv;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A thread pool that runs the tasks of every actor (connection handler) one
+ * at a time and in submission order, while different actors run in parallel.
+ */
+public class ActorThreadPool {
+
+  private final Map<Object, Queue<Runnable>> acts;
+  private final ReadWriteLock actsRWLock;
+  private final Set<Object> playingNow;
+  private final ExecutorService threads;
+  // only hands tasks to the pool once their delay passed, see submitLater
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+    Thread.ofPlatform().daemon().name("actor-timer").factory()
+  );
+
+  /**
+   * A fixed pool of {@code threads} workers. A task must not wait for
+   * something only another actor's later task releases, with every worker
+   * waiting the pool would deadlock.
+   */
+  public ActorThreadPool(int threads) {
+    this.threads = Executors.newFixedThreadPool(threads);
+    acts = new WeakHashMap<>();
+    playingNow = ConcurrentHashMap.newKeySet();
+    actsRWLock = new ReentrantReadWriteLock();
+  }
+
+  public void submit(Object act, Runnable r) {
+    synchronized (act) {
+      if (!playingNow.contains(act)) {
+        playingNow.add(act);
+        execute(r, act);
+      } else {
+        pendingRunnablesOf(act).add(r);
+      }
+    }
+  }
+
+  /**
+   * Submits r for act once delayMillis passed, for a task that would have to
+   * wait otherwise, e.g. for a lock another actor holds.
+   */
+  public void submitLater(Object act, Runnable r, long delayMillis) {
+    timer.schedule(() -> submit(act, r), delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void shutdown() {
+    timer.shutdownNow();
+    threads.shutdownNow();
+  }
+
+  private Queue<Runnable> pendingRunnablesOf(Object act) {
+    actsRWLock.readLock().lock();
+    Queue<Runnable> pendingRunnables = acts.get(act);
+    actsRWLock.readLock().unlock();
+
+    if (pendingRunnables == null) {
+      actsRWLock.writeLock().lock();
+      acts.put(act, pendingRunnables = new LinkedList<>());
+      actsRWLock.writeLock().unlock();
+    }
+    return pendingRunnables;
+  }
+
+  private void execute(Runnable r, Object act) {
+    threads.execute(() -> {
+      try {
+        r.run();
+      } finally {
+        complete(act);
+      }
+    });
+  }
+
+  private void complete(Object act) {
+    synchronized (act) {
+      Queue<Runnable> pending = pendingRunnablesOf(act);
+      if (pending.isEmpty()) {
+        playingNow.remove(act);
+      } else {
+        execute(pending.poll(), act);
+      }
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the number of concurrent connections and in-flight transfers.
+ * A limit of 0 or less means unlimited.
+ */
+public class AdmissionControl<T> {
+
+  private final int maxConnections;
+  private final int maxTransfers;
+  private final long acceptTimeoutMillis;
+  private final T busyMessage;
+  private final Semaphore connectionSlots;
+  private final Semaphore transferSlots;
+  private final AtomicLong rejectedConnections = new AtomicLong();
+  private final AtomicLong rejectedTransfers = new AtomicLong();
+
+  /**
+   * @param maxConnections maximum number of open connections
+   * @param maxTransfers maximum number of transfers in progress
+   * @param acceptTimeoutMillis how long a new connection may wait for a free slot
+   * @param busyMessage the message sent to a connection that is turned away, or null
+   */
+  public AdmissionControl(
+    int maxConnections,
+    int maxTransfers,
+    long acceptTimeoutMillis,
+    T busyMessage
+  ) {
+    this.maxConnections = maxConnections > 0 ? maxConnections : Integer.MAX_VALUE;
+    this.maxTransfers = maxTransfers > 0 ? maxTransfers : Integer.MAX_VALUE;
+    this.acceptTimeoutMillis = Math.max(0, acceptTimeoutMillis);
+    this.busyMessage = busyMessage;
+    connectionSlots = new Semaphore(this.maxConnections);
+    transferSlots = new Semaphore(this.maxTransfers);
+  }
+
+  public static <T> AdmissionControl<T> unlimited() {
+    return new AdmissionControl<>(0, 0, 0, null);
+  }
+
+  /**
+   * Takes a connection slot, waiting up to the accept timeout for one to free up.
+   * @return false if the connection should be rejected
+   */
+  public boolean acquireConnection() {
+    try {
+      if (connectionSlots.tryAcquire(acceptTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    rejectedConnections.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Takes a connection slot without waiting, for callers that must not block.
+   * @return false if the connection should be rejected
+   */
+  public boolean tryAcquireConnection() {
+    if (connectionSlots.tryAcquire()) return true;
+    rejectedConnections.incrementAndGet();
+    return false;
+  }
+
+  public void releaseConnection() {
+    connectionSlots.release();
+  }
+
+  /**
+   * @return false if the transfer should be rejected
+   */
+  public boolean tryAcquireTransfer() {
+    if (transferSlots.tryAcquire()) return true;
+    rejectedTransfers.incrementAndGet();
+    return false;
+  }
+
+  public void releaseTransfer() {
+    transferSlots.release();
+  }
+
+  public T busyMessage() {
+    return busyMessage;
+  }
+
+  public int activeConnections() {
+    return maxConnections - connectionSlots.availablePermits();
+  }
+
+  public int activeTransfers() {
+    return maxTransfers - transferSlots.availablePermits();
+  }
+
+  public int maxConnections() {
+    return maxConnections;
+  }
+
+  public int maxTransfers() {
+    return maxTransfers;
+  }
+
+  public long rejectedConnections() {
+    return rejectedConnections.get();
+  }
+
+  public long rejectedTransfers() {
+    return rejectedTransfers.get();
+  }
+
+  @Override
+  public String toString() {
+    return (
+      "connections " +
+      activeConnections() +
+      "/" +
+      maxConnections +
+      " (rejected " +
+      rejectedConnections() +
+      "), transfers " +
+      activeTransfers() +
+      "/" +
+      maxTransfers +
+      " (rejected " +
+      rejectedTransfers() +
+      ")"
+    );
+  }
+}
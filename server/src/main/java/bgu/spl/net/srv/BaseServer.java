@@ -4,8 +4,9 @@ import bgu.spl.net.api.BidiMessagingProtocol;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.function.Supplier;
 
 public abstract class BaseServer<T> implements Server<T> {
@@ -15,7 +16,7 @@ public abstract class BaseServer<T> implements Server<T> {
   private final Supplier<MessageEncoderDecoder<T>> encdecFactory;
   private ConnectionsImpl<T> connections;
   int counter = 0;
-  private ServerSocket sock;
+  private ServerSocketChannel sock;
 
   public BaseServer(
     int port,
@@ -32,13 +33,23 @@ public abstract class BaseServer<T> implements Server<T> {
 
   @Override
   public void serve() {
-    try (ServerSocket serverSock = new ServerSocket(port)) {
+    // a channel backed socket lets the handlers write files with transferTo
+    try (ServerSocketChannel serverSock = ServerSocketChannel.open()) {
+      serverSock.bind(new InetSocketAddress(port));
       System.out.println("Server started");
 
       this.sock = serverSock; //just to be able to close
 
       while (!Thread.currentThread().isInterrupted()) {
-        Socket clientSock = serverSock.accept();
+        Socket clientSock = serverSock.accept().socket();
+        // packets are written as header and payload, don't let Nagle hold the
+        // payload back until the peer's delayed ack
+        clientSock.setTcpNoDelay(true);
+
+        if (!connections.admission.acquireConnection()) {
+          reject(clientSock);
+          continue;
+        }
 
         BlockingConnectionHandler<T> handler = new BlockingConnectionHandler<>(
           clientSock,
@@ -59,6 +70,21 @@ public abstract class BaseServer<T> implements Server<T> {
     } catch (IOException e) {}
   }
 
+  private void reject(Socket clientSock) {
+    EventLog log = EventLog.get();
+    if (log.isEnabled(EventLog.Level.WARN)) {
+      log.warn(-1, null, "Connection rejected", connections.admission.toString());
+    }
+    try (Socket rejected = clientSock) {
+      T busy = connections.admission.busyMessage();
+      if (busy != null) {
+        rejected.getOutputStream().write(encdecFactory.get().encode(busy));
+        rejected.getOutputStream().flush();
+      }
+      rejected.shutdownOutput();
+    } catch (IOException e) {}
+  }
+
   @Override
   public void close() throws IOException {
     if (sock != null) sock.close();
@@ -4,20 +4,50 @@ import bgu.spl.net.api.BidiMessagingProtocol;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class BlockingConnectionHandler<T>
   implements Runnable, ConnectionHandler<T> {
 
+  private static final int BATCH_SIZE = 1 << 16; //64k
+  private static final long HIGH_WATER_MARK = 1 << 20;
+  private static final long LOW_WATER_MARK = HIGH_WATER_MARK / 2;
+  // queued by run() after the last message, the writer stops once it sees it
+  private static final Object END = new Object();
+
   private final BidiMessagingProtocol<T> protocol;
   private final MessageEncoderDecoder<T> encdec;
   private final Socket sock;
   private BufferedInputStream in;
   public int connectionId;
-  private BufferedOutputStream out;
   private volatile boolean connected = true;
+  private volatile long lastReadNanos = System.nanoTime();
+  private volatile long lastWriteNanos = System.nanoTime();
+  // on a virtual thread the handler has a writer thread too, cheap there, so
+  // senders never wait for the client's socket. It drains this queue of
+  // ByteBuffers, ByteBuffer[]s (a header and its payload) and FileRegions in
+  // the order they were sent. On a platform thread a second thread per client
+  // would cost as much as the first, so the senders write themselves, one at
+  // a time under sendLock
+  private final BlockingQueue<Object> writeQueue = new LinkedBlockingQueue<>();
+  private final AtomicLong queuedBytes = new AtomicLong();
+  // not synchronized: a virtual thread waiting inside a monitor would pin its
+  // carrier thread
+  private final ReentrantLock drainLock = new ReentrantLock();
+  private final Condition drained = drainLock.newCondition();
+  private volatile Thread writer;
+  private final ReentrantLock sendLock = new ReentrantLock();
+  private volatile SocketChannel chan;
+  private volatile ByteBuffer batch; // used under sendLock, when there is no writer
+  private ConnectionsImpl<T> connections;
 
   public BlockingConnectionHandler(
     Socket sock,
@@ -35,21 +65,49 @@ public class BlockingConnectionHandler<T>
   public void run() {
     try (Socket sock = this.sock) { //just for automatic closing
       int read;
+      byte[] bytes = new byte[1 << 13]; //8k
+      ByteBuffer buf = ByteBuffer.wrap(bytes);
 
       in = new BufferedInputStream(sock.getInputStream());
-      out = new BufferedOutputStream(sock.getOutputStream());
+      // the socket comes from a blocking SocketChannel, so transferTo is a sendfile
+      chan = sock.getChannel();
+      if (Thread.currentThread().isVirtual()) {
+        writer = Thread.ofVirtual().name("writer-" + connectionId).start(this::writeLoop);
+      } else {
+        batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+      }
 
       while (
-        !protocol.shouldTerminate() && connected && (read = in.read()) >= 0
+        !protocol.shouldTerminate() && connected && (read = in.read(bytes)) >= 0
       ) {
-        T nextMessage = encdec.decodeNextByte((byte) read);
-        if (nextMessage != null) {
-          protocol.process(nextMessage);
+        buf.clear().limit(read);
+        lastReadNanos = System.nanoTime();
+        connections.bytesIn.add(read);
+        while (!protocol.shouldTerminate() && buf.hasRemaining()) {
+          T nextMessage = encdec.decodeNext(buf);
+          if (nextMessage != null) {
+            protocol.process(nextMessage);
+            encdec.release(nextMessage);
+          }
         }
+        awaitDrained();
+      }
+      // let the writer send what is left, like the ACK of a DISC, then close
+      if (writer != null) {
+        writeQueue.add(END);
+        writer.join();
       }
       close();
     } catch (IOException ex) {
-      ex.printStackTrace();
+      // not when the socket was closed on purpose, e.g. by a timeout
+      if (connected) EventLog.get().error(connectionId, "Connection failed", ex);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } finally {
+      connected = false;
+      if (writer != null) writer.interrupt();
+      if (connections != null) connections.disconnect(connectionId);
+      protocol.connectionClosed();
     }
   }
 
@@ -60,14 +118,198 @@ public class BlockingConnectionHandler<T>
   }
 
   @Override
-  public synchronized void send(T msg) {
-    try {
-      out.write(encdec.encode(msg));
-      out.flush();
-    } catch (IOException e) {}
+  public void send(T msg) {
+    if (!connected) return;
+    ByteBuffer buf = ByteBuffer.wrap(encdec.encode(msg));
+    enqueue(buf, buf.remaining());
+  }
+
+  @Override
+  public void sendFile(T header, SharedFile file, long position, long count) {
+    if (!connected) return;
+    FileRegion region = new FileRegion(
+      encdec.encode(header),
+      file,
+      position,
+      count
+    );
+    enqueue(region, region.size());
+  }
+
+  @Override
+  public void sendBuffer(T header, ByteBuffer payload) {
+    if (!connected) return;
+    ByteBuffer[] packet = { ByteBuffer.wrap(encdec.encode(header)), payload };
+    enqueue(packet, packet[0].remaining() + payload.remaining());
+  }
+
+  private void enqueue(Object item, long size) {
+    if (writer == null) {
+      writeInline(item);
+      return;
+    }
+    queuedBytes.addAndGet(size);
+    writeQueue.add(item);
+    // the writer may have stopped and discarded the queue meanwhile
+    if (!connected) discardQueued();
+  }
+
+  @Override
+  public boolean isBackpressured() {
+    return queuedBytes.get() > HIGH_WATER_MARK;
+  }
+
+  @Override
+  public long lastReadNanos() {
+    return lastReadNanos;
+  }
+
+  @Override
+  public long lastWriteNanos() {
+    return lastWriteNanos;
+  }
+
+  @Override
+  public boolean isTransferring() {
+    return protocol.isTransferring();
   }
 
   public void start(int connectionIdVal, ConnectionsImpl<T> connectionsVal) {
+    connections = connectionsVal;
     protocol.start(connectionIdVal, connectionsVal);
   }
+
+  // stops reading requests while the client is slow to read the replies, so a
+  // connection can't queue without bound
+  private void awaitDrained() throws InterruptedException {
+    if (!isBackpressured()) return;
+    drainLock.lock();
+    try {
+      while (connected && queuedBytes.get() > LOW_WATER_MARK) {
+        drained.await();
+      }
+    } finally {
+      drainLock.unlock();
+    }
+  }
+
+  /**
+   * Drains the write queue. Packets queued together are copied into one
+   * buffer and written with a single call, file regions go out with
+   * transferTo after the packets before them.
+   */
+  private void writeLoop() {
+    ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+    try {
+      Object next = writeQueue.take();
+      while (next != END) {
+        long written = 0;
+        do {
+          written += writeItem(batch, next);
+        } while ((next = writeQueue.poll()) != null && next != END);
+        flush(batch);
+        connections.bytesOut.add(written);
+        if (queuedBytes.addAndGet(-written) <= LOW_WATER_MARK) signalDrained();
+        if (next == null) next = writeQueue.take();
+      }
+    } catch (IOException ex) {
+      // the client is gone, closing the socket also stops the reader
+      try {
+        close();
+      } catch (IOException ignored) {}
+    } catch (InterruptedException ex) {} finally {
+      connected = false;
+      discardQueued();
+      signalDrained();
+    }
+  }
+
+  // writes item on the sender's thread, when there is no writer thread
+  private void writeInline(Object item) {
+    sendLock.lock();
+    try {
+      if (!connected) return;
+      long written = writeItem(batch, item);
+      flush(batch);
+      connections.bytesOut.add(written);
+    } catch (IOException ex) {
+      // the client is gone, closing the socket also stops the reader
+      try {
+        close();
+      } catch (IOException ignored) {}
+    } finally {
+      if (item instanceof FileRegion) ((FileRegion) item).release();
+      sendLock.unlock();
+    }
+  }
+
+  // adds item to the batch, a file region is written after flushing it
+  private long writeItem(ByteBuffer batch, Object item) throws IOException {
+    if (item instanceof FileRegion) {
+      FileRegion region = (FileRegion) item;
+      flush(batch);
+      try {
+        // a blocking socket takes at least a byte per call, so a region
+        // left unfinished means the socket failed
+        if (!region.transferTo(chan)) {
+          throw new IOException("The socket stopped taking a file region");
+        }
+      } finally {
+        region.release();
+      }
+      lastWriteNanos = System.nanoTime();
+      return region.size();
+    }
+    if (item instanceof ByteBuffer[]) {
+      long written = 0;
+      for (ByteBuffer buf : (ByteBuffer[]) item) {
+        written += write(batch, buf);
+      }
+      return written;
+    }
+    return write(batch, (ByteBuffer) item);
+  }
+
+  // drops what is left in the queue once the connection is done, so the
+  // files of the queued regions get closed
+  private void discardQueued() {
+    Object next;
+    while ((next = writeQueue.poll()) != null) {
+      if (next instanceof FileRegion) ((FileRegion) next).release();
+    }
+    queuedBytes.set(0);
+  }
+
+  // adds buf to the batch, what doesn't fit in an empty batch is written directly
+  private int write(ByteBuffer batch, ByteBuffer buf) throws IOException {
+    int size = buf.remaining();
+    if (size > batch.remaining()) flush(batch);
+    if (size > batch.remaining()) {
+      while (buf.hasRemaining()) {
+        chan.write(buf);
+        lastWriteNanos = System.nanoTime();
+      }
+    } else {
+      batch.put(buf);
+    }
+    return size;
+  }
+
+  private void flush(ByteBuffer batch) throws IOException {
+    batch.flip();
+    while (batch.hasRemaining()) {
+      chan.write(batch);
+      lastWriteNanos = System.nanoTime();
+    }
+    batch.clear();
+  }
+
+  private void signalDrained() {
+    drainLock.lock();
+    try {
+      drained.signalAll();
+    } finally {
+      drainLock.unlock();
+    }
+  }
 }
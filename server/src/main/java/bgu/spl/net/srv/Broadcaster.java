@@ -0,0 +1,115 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends broadcasts from a background thread, so the caller only queues the
+ * message. Messages with the same key that are queued before the thread gets
+ * to them are coalesced and only the latest is sent. The message object is
+ * shared by all the subscribers, each handler only queues it. Nothing is sent
+ * before start.
+ */
+public class Broadcaster<T> {
+
+  private static class Event<T> {
+
+    final int senderId;
+    final T msg;
+
+    Event(int senderId, T msg) {
+      this.senderId = senderId;
+      this.msg = msg;
+    }
+  }
+
+  private ConnectionsImpl<T> connections;
+  private final SlowConsumerPolicy policy;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition queued = lock.newCondition();
+  private LinkedHashMap<Object, Event<T>> pending = new LinkedHashMap<>();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong disconnected = new AtomicLong();
+
+  public Broadcaster(SlowConsumerPolicy policy) {
+    this.policy = policy;
+  }
+
+  /** starts the thread that sends to the logged in connections */
+  public void start(ConnectionsImpl<T> connections) {
+    this.connections = connections;
+    Thread.ofPlatform().daemon().name("bcast").start(this::run);
+  }
+
+  /**
+   * Queues msg for every logged in connection but the sender.
+   * @param key messages with equal keys may be coalesced
+   */
+  public void submit(int senderId, Object key, T msg) {
+    lock.lock();
+    try {
+      // a newer event for the key replaces the one not sent yet
+      if (pending.remove(key) != null) coalesced.incrementAndGet();
+      pending.put(key, new Event<>(senderId, msg));
+      queued.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void run() {
+    try {
+      while (true) {
+        Map<Object, Event<T>> batch;
+        lock.lock();
+        try {
+          while (pending.isEmpty()) queued.await();
+          batch = pending;
+          pending = new LinkedHashMap<>();
+        } finally {
+          lock.unlock();
+        }
+        for (Event<T> event : batch.values()) deliver(event);
+      }
+    } catch (InterruptedException e) {}
+  }
+
+  // the recipients are copied first, a slow one must not hold up logins and
+  // logouts while it is sent to
+  private void deliver(Event<T> event) {
+    for (int conId : connections.loggedInIds()) {
+      if (conId == event.senderId) continue;
+      ConnectionHandler<T> handler = connections.map.get(conId);
+      if (handler == null) continue;
+      if (handler.isBackpressured()) {
+        if (policy == SlowConsumerPolicy.DISCONNECT) {
+          disconnected.incrementAndGet();
+          try {
+            handler.close();
+          } catch (IOException e) {}
+        } else {
+          dropped.incrementAndGet();
+        }
+        continue;
+      }
+      handler.send(event.msg);
+    }
+  }
+
+  public long coalesced() {
+    return coalesced.get();
+  }
+
+  public long dropped() {
+    return dropped.get();
+  }
+
+  public long disconnected() {
+    return disconnected.get();
+  }
+}
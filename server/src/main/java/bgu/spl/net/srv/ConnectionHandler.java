@@ -6,6 +6,7 @@
 package bgu.spl.net.srv;
 
 import java.io.Closeable;
+import java.nio.ByteBuffer;
 
 /**
  * The ConnectionHandler interface for Message of type T
@@ -19,4 +20,61 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Sends the header message followed by count bytes of the file starting at
+     * position, copied by the kernel straight from the file to the socket.
+     * The handler holds a reference to the file until the region was written
+     * or the connection closed. A file shorter than the region by then closes
+     * the connection, the header already announced the length.
+     */
+    void sendFile(T header, SharedFile file, long position, long count);
+
+    /**
+     * Sends the header message followed by the remaining bytes of payload,
+     * e.g. a slice of a mapped file. The payload isn't copied, so it must not
+     * change until it was written.
+     */
+    void sendBuffer(T header, ByteBuffer payload);
+
+    /**
+     * Sends don't wait for the client, they are queued. Returns true while more
+     * than the handler's high-water mark is queued, a sign the client reads
+     * slower than it is being sent to.
+     */
+    default boolean isBackpressured() {
+        return false;
+    }
+
+    /**
+     * @return the System.nanoTime() of the last bytes received
+     */
+    default long lastReadNanos() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @return the System.nanoTime() of the last bytes the client took from
+     * the queue of sends
+     */
+    default long lastWriteNanos() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Runs task on the thread that processes this connection's messages, after
+     * them and once delayMillis passed. A handler whose thread may wait for a
+     * lock, one per connection, returns false and the caller waits instead.
+     * @return true if the task was scheduled
+     */
+    default boolean schedule(Runnable task, long delayMillis) {
+        return false;
+    }
+
+    /**
+     * @return true while the protocol has a transfer in progress
+     */
+    default boolean isTransferring() {
+        return false;
+    }
+
 }
@@ -0,0 +1,90 @@
+package bgu.spl.net.srv;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Closes the connections a client stopped talking on, so a dead client can't
+ * hold file locks, open files or its login forever. A connection is closed
+ * when nothing was received from it and nothing it was sent was written for
+ * the idle timeout, or for the transfer timeout while it has a RRQ or WRQ in
+ * progress, e.g. a client that stopped acknowledging. Writes count because a
+ * backpressured connection isn't read until the client catches up. Closing it
+ * makes the handler release what its protocol holds.
+ *
+ * One daemon thread, started by start, checks all the connections a few times
+ * per timeout.
+ */
+public class ConnectionTimeouts<T> {
+
+  private final long idleNanos;
+  private final long transferNanos;
+  private final LongAdder idleClosed = new LongAdder();
+  private final LongAdder stalledClosed = new LongAdder();
+
+  /**
+   * @param idleMillis 0 or less never closes an idle connection
+   * @param transferMillis 0 or less never closes a stalled transfer
+   */
+  public ConnectionTimeouts(long idleMillis, long transferMillis) {
+    this.idleNanos = Math.max(0, idleMillis) * 1_000_000;
+    this.transferNanos = Math.max(0, transferMillis) * 1_000_000;
+  }
+
+  public void start(ConnectionsImpl<T> connections) {
+    long shortest = Math.min(
+      idleNanos > 0 ? idleNanos : Long.MAX_VALUE,
+      transferNanos > 0 ? transferNanos : Long.MAX_VALUE
+    );
+    if (shortest != Long.MAX_VALUE) {
+      // checked at least 4 times per timeout, at most 10 times a second
+      long period = Math.max(100, shortest / 4 / 1_000_000);
+      Thread.ofPlatform().daemon().name("timeouts").start(() -> checkLoop(connections, period));
+    }
+  }
+
+  private void checkLoop(ConnectionsImpl<T> connections, long periodMillis) {
+    try {
+      while (true) {
+        Thread.sleep(periodMillis);
+        check(connections, System.nanoTime());
+      }
+    } catch (InterruptedException e) {}
+  }
+
+  private void check(ConnectionsImpl<T> connections, long now) {
+    for (Map.Entry<Integer, ConnectionHandler<T>> entry : connections.map.entrySet()) {
+      ConnectionHandler<T> handler = entry.getValue();
+      boolean transferring = handler.isTransferring();
+      long timeout = transferring ? transferNanos : idleNanos;
+      long lastRead = handler.lastReadNanos();
+      long lastWrite = handler.lastWriteNanos();
+      long lastActive = lastWrite - lastRead > 0 ? lastWrite : lastRead;
+      if (timeout == 0 || now - lastActive <= timeout) {
+        continue;
+      }
+      (transferring ? stalledClosed : idleClosed).increment();
+      EventLog.get().warn(
+        entry.getKey(),
+        null,
+        transferring ? "Transfer stalled, closing" : "Idle, closing",
+        null
+      );
+      try {
+        handler.close();
+      } catch (Exception e) {}
+      // the handler removes itself too, this makes sure it isn't checked again
+      connections.disconnect(entry.getKey());
+    }
+  }
+
+  /** connections closed after the idle timeout */
+  public long idleClosed() {
+    return idleClosed.sum();
+  }
+
+  /** connections closed after the transfer timeout */
+  public long stalledClosed() {
+    return stalledClosed.sum();
+  }
+}
@@ -3,7 +3,7 @@ package bgu.spl.net.srv;
 import java.io.IOException;
 
 public interface Connections<T> {
-  void connect(int connectionId, BlockingConnectionHandler<T> handler);
+  void connect(int connectionId, ConnectionHandler<T> handler);
 
   boolean send(int connectionId, T msg);
 
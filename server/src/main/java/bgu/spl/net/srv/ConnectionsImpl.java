@@ -1,72 +1,191 @@
 package bgu.spl.net.srv;
 
-import java.util.Iterator;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ConnectionsImpl<T> implements Connections<T> {
 
-  ConcurrentHashMap<Integer, BlockingConnectionHandler<T>> map;
+  ConcurrentHashMap<Integer, ConnectionHandler<T>> map;
   ConcurrentHashMap<String, Integer> loggedInList;
+  // guards loggedInList; not a monitor, so it never pins a virtual thread
+  private final ReentrantLock loggedInLock = new ReentrantLock();
 
-  public ReentrantReadWriteLock lock;
+  public final FileLockManager fileLocks = new FileLockManager();
+
+  public final AdmissionControl<T> admission;
+
+  public final Broadcaster<T> broadcaster;
+
+  public final ConnectionTimeouts<T> timeouts;
+
+  // counted by the handlers as they read from and write to the sockets
+  public final LongAdder bytesIn = new LongAdder();
+  public final LongAdder bytesOut = new LongAdder();
 
   public ConnectionsImpl() {
+    this(AdmissionControl.unlimited(), SlowConsumerPolicy.DROP);
+  }
+
+  public ConnectionsImpl(
+    AdmissionControl<T> admission,
+    SlowConsumerPolicy slowConsumerPolicy
+  ) {
+    this(admission, slowConsumerPolicy, 0, 0);
+  }
+
+  /**
+   * @param idleTimeoutMillis closes a connection nothing was received from
+   * for this long, 0 never does
+   * @param transferTimeoutMillis the same for a connection with a transfer in
+   * progress
+   */
+  public ConnectionsImpl(
+    AdmissionControl<T> admission,
+    SlowConsumerPolicy slowConsumerPolicy,
+    long idleTimeoutMillis,
+    long transferTimeoutMillis
+  ) {
     map = new ConcurrentHashMap<>();
     loggedInList = new ConcurrentHashMap<>();
+    this.admission = admission;
+    broadcaster = new Broadcaster<>(slowConsumerPolicy);
+    timeouts = new ConnectionTimeouts<>(idleTimeoutMillis, transferTimeoutMillis);
+  }
 
-    lock = new ReentrantReadWriteLock();
+  /** starts the threads of the broadcaster and the timeouts, before serving */
+  public void start() {
+    broadcaster.start(this);
+    timeouts.start(this);
   }
 
   @Override
-  public void connect(int connectionId, BlockingConnectionHandler<T> handler) {
+  public void connect(int connectionId, ConnectionHandler<T> handler) {
     if (map.get(connectionId) != null) return;
     map.put(connectionId, handler);
   }
 
   @Override
   public boolean send(int connectionId, T msg) {
-    if (map.get(connectionId) == null) return false;
-    map.get(connectionId).send(msg);
+    // handlers queue the message, the caller never waits for the client
+    ConnectionHandler<T> handler = map.get(connectionId);
+    if (handler == null) return false;
+    handler.send(msg);
+    return true;
+  }
+
+  public boolean sendFile(
+    int connectionId,
+    T header,
+    SharedFile file,
+    long position,
+    long count
+  ) {
+    ConnectionHandler<T> handler = map.get(connectionId);
+    if (handler == null) return false;
+    handler.sendFile(header, file, position, count);
+    return true;
+  }
+
+  public boolean sendBuffer(int connectionId, T header, ByteBuffer payload) {
+    ConnectionHandler<T> handler = map.get(connectionId);
+    if (handler == null) return false;
+    handler.sendBuffer(header, payload);
     return true;
   }
 
+  /**
+   * Runs task on the connection's thread later, see ConnectionHandler.schedule.
+   * @return false if the caller may wait instead; true if the connection is
+   * gone too, there is nothing to run it for
+   */
+  public boolean schedule(int connectionId, Runnable task, long delayMillis) {
+    ConnectionHandler<T> handler = map.get(connectionId);
+    return handler == null || handler.schedule(task, delayMillis);
+  }
+
   @Override
   public void disconnect(int connectionId) {
-    if (map.get(connectionId) != null) map.remove(connectionId);
+    // every connected handler holds one admission slot until it is removed
+    if (map.remove(connectionId) != null) admission.releaseConnection();
   }
 
   public Integer checkIfLoggedin(String userName) {
-    synchronized (loggedInList) {
+    loggedInLock.lock();
+    try {
       return loggedInList.get(userName);
+    } finally {
+      loggedInLock.unlock();
     }
   }
 
   public void logIn(String userName, int connectionId) {
-    synchronized (loggedInList) {
+    loggedInLock.lock();
+    try {
       loggedInList.put(userName, connectionId);
+    } finally {
+      loggedInLock.unlock();
     }
   }
 
   public void logOut(String userName) {
-    synchronized (loggedInList) {
+    loggedInLock.lock();
+    try {
       loggedInList.remove(userName);
+    } finally {
+      loggedInLock.unlock();
     }
   }
 
-  public BlockingConnectionHandler<T> getConnectionHandler(int connectionId) {
+  /**
+   * @return the ids of the logged in connections, copied under the lock so
+   * the caller can send to them without holding it
+   */
+  public int[] loggedInIds() {
+    loggedInLock.lock();
+    try {
+      // the list only changes under the lock, so its size is exact
+      int[] ids = new int[loggedInList.size()];
+      int count = 0;
+      for (int id : loggedInList.values()) ids[count++] = id;
+      return ids;
+    } finally {
+      loggedInLock.unlock();
+    }
+  }
+
+  public int connectionCount() {
+    return map.size();
+  }
+
+  public int loggedInCount() {
+    return loggedInList.size();
+  }
+
+  public ConnectionHandler<T> getConnectionHandler(int connectionId) {
     return map.get(connectionId);
   }
 
+  /**
+   * @return true if the connection has more sends queued than its handler's
+   * high-water mark
+   */
+  public boolean isBackpressured(int connectionId) {
+    ConnectionHandler<T> handler = map.get(connectionId);
+    return handler != null && handler.isBackpressured();
+  }
+
   public void bCast(int connectionId, T msg) {
-    synchronized (loggedInList) {
-      Iterator<Integer> connectionsIt = loggedInList.values().iterator();
-      while (connectionsIt.hasNext()) {
-        int conId = connectionsIt.next();
-        if (conId != connectionId) {
-          map.get(conId).send(msg);
-        }
-      }
-    }
+    bCast(connectionId, new Object(), msg);
+  }
+
+  /**
+   * Returns at once, the message is sent to the other logged in connections
+   * in the background. A message not sent yet is replaced by a later one with
+   * an equal key, e.g. the events of one file.
+   */
+  public void bCast(int connectionId, Object key, T msg) {
+    broadcaster.submit(connectionId, key, msg);
   }
 }
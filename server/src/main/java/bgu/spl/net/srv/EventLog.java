@@ -0,0 +1,165 @@
+package bgu.spl.net.srv;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server's log of events, e.g. a login or the end of a transfer, with the
+ * connection and user they belong to. A log call only fills a slot of a ring
+ * buffer, a background thread formats and prints the events, so callers never
+ * wait for the console. Slots are claimed with a CAS, so there is no lock; when
+ * the ring is full the event is dropped and counted instead of waiting.
+ *
+ * Events below the level of -Dtftp.logLevel (INFO by default) return at once.
+ * The arguments are ones the caller already holds, so a disabled call
+ * allocates nothing.
+ */
+public class EventLog {
+
+  public enum Level {
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+  }
+
+  static final int CAPACITY = 1 << 14;
+
+  private static class Slot {
+
+    volatile long sequence = -1; // set last, the event is complete once it matches
+    long millis;
+    Level level;
+    int connectionId;
+    String user;
+    String event;
+    String detail;
+    Throwable error;
+  }
+
+  private static class Holder {
+
+    static final EventLog LOG = new EventLog(
+      Level.valueOf(System.getProperty("tftp.logLevel", "INFO").toUpperCase()),
+      System.out
+    );
+  }
+
+  private final Slot[] slots = new Slot[CAPACITY];
+  private final AtomicLong claimed = new AtomicLong(); // next sequence to claim
+  private volatile long consumed; // next sequence the writer prints
+  private volatile boolean sleeping; // the writer waits to be unparked
+  private final LongAdder dropped = new LongAdder();
+  private volatile Level level;
+  private final PrintStream out;
+  private final Thread writer;
+
+  public EventLog(Level level, PrintStream out) {
+    this.level = level;
+    this.out = out;
+    for (int i = 0; i < CAPACITY; i++) {
+      slots[i] = new Slot();
+    }
+    writer = Thread.ofPlatform().daemon().name("event-log").start(this::writeLoop);
+  }
+
+  /** The log of the whole server */
+  public static EventLog get() {
+    return Holder.LOG;
+  }
+
+  public boolean isEnabled(Level level) {
+    return level.compareTo(this.level) >= 0;
+  }
+
+  public void setLevel(Level level) {
+    this.level = level;
+  }
+
+  public void debug(int connectionId, String user, String event, String detail) {
+    log(Level.DEBUG, connectionId, user, event, detail, null);
+  }
+
+  public void info(int connectionId, String user, String event, String detail) {
+    log(Level.INFO, connectionId, user, event, detail, null);
+  }
+
+  public void warn(int connectionId, String user, String event, String detail) {
+    log(Level.WARN, connectionId, user, event, detail, null);
+  }
+
+  public void error(int connectionId, String event, Throwable error) {
+    log(Level.ERROR, connectionId, null, event, null, error);
+  }
+
+  /**
+   * @param connectionId -1 for an event of no connection
+   * @param user null if unknown
+   * @param detail e.g. the file name, may be null
+   */
+  public void log(
+    Level level,
+    int connectionId,
+    String user,
+    String event,
+    String detail,
+    Throwable error
+  ) {
+    if (!isEnabled(level)) return;
+    long sequence;
+    do {
+      sequence = claimed.get();
+      if (sequence - consumed >= CAPACITY) {
+        dropped.increment();
+        return;
+      }
+    } while (!claimed.compareAndSet(sequence, sequence + 1));
+    Slot slot = slots[(int) sequence & (CAPACITY - 1)];
+    slot.millis = System.currentTimeMillis();
+    slot.level = level;
+    slot.connectionId = connectionId;
+    slot.user = user;
+    slot.event = event;
+    slot.detail = detail;
+    slot.error = error;
+    slot.sequence = sequence;
+    if (sleeping) LockSupport.unpark(writer);
+  }
+
+  public long dropped() {
+    return dropped.sum();
+  }
+
+  private void writeLoop() {
+    StringBuilder line = new StringBuilder();
+    while (true) {
+      long next = consumed;
+      Slot slot = slots[(int) next & (CAPACITY - 1)];
+      if (slot.sequence != next) {
+        // checked again after announcing the sleep, so a publish isn't missed
+        sleeping = true;
+        if (slot.sequence != next) LockSupport.parkNanos(100_000_000);
+        sleeping = false;
+        continue;
+      }
+      line.setLength(0);
+      line.append(Instant.ofEpochMilli(slot.millis)).append(' ').append(slot.level);
+      if (slot.connectionId >= 0) {
+        line.append(" [").append(slot.connectionId);
+        if (slot.user != null) line.append(' ').append(slot.user);
+        line.append(']');
+      }
+      line.append(' ').append(slot.event);
+      if (slot.detail != null) line.append(": ").append(slot.detail);
+      Throwable error = slot.error;
+      slot.user = slot.event = slot.detail = null;
+      slot.error = null;
+      consumed = next + 1; // frees the slot
+      out.println(line);
+      if (error != null) error.printStackTrace(out);
+    }
+  }
+}
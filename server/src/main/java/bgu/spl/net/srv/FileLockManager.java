@@ -0,0 +1,119 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A read/write lock per file name, so transfers of different files don't wait
+ * for each other. An entry lives only while someone holds or waits for its
+ * lock, a reference count removes it when the last one leaves.
+ *
+ * The locks are not owned by a thread: a transfer may take one while one worker
+ * handles the request and release it while another worker handles the final ACK.
+ *
+ * A read lock is held for a whole download, so writers don't wait for it, or
+ * only for a bounded time. A write lock is only held for a quick change of the
+ * file, so lockRead waits for it. A reactor worker waits for neither, it could
+ * be the one that would handle the holder's next message; it tries again in a
+ * later task.
+ */
+public class FileLockManager {
+
+  private static class Entry {
+
+    final StampedLock lock = new StampedLock();
+    int users; // changed only inside the map's compute functions
+  }
+
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+  // how long lockRead waited for the lock
+  public final LatencyHistogram waits = new LatencyHistogram();
+
+  public void lockRead(String name) {
+    long start = System.nanoTime();
+    acquire(name).lock.asReadLock().lock();
+    waits.recordSince(start);
+  }
+
+  /**
+   * Takes the read lock without waiting.
+   * @return false if it is held for writing
+   */
+  public boolean tryLockRead(String name) {
+    if (acquire(name).lock.asReadLock().tryLock()) {
+      return true;
+    }
+    release(name);
+    return false;
+  }
+
+  public void unlockRead(String name) {
+    Entry entry = entries.get(name);
+    entry.lock.asReadLock().unlock();
+    release(name);
+  }
+
+  /**
+   * Takes the write lock without waiting.
+   * @return false if it is held, e.g. the file is being downloaded
+   */
+  public boolean tryLockWrite(String name) {
+    if (acquire(name).lock.asWriteLock().tryLock()) {
+      return true;
+    }
+    release(name);
+    return false;
+  }
+
+  /**
+   * Takes the write lock, waiting at most timeoutMillis for it.
+   * @return false if it is still held, or the thread was interrupted
+   */
+  public boolean tryLockWrite(String name, long timeoutMillis) {
+    boolean locked = false;
+    try {
+      locked = acquire(name).lock.asWriteLock().tryLock(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (!locked) {
+      release(name);
+    }
+    return locked;
+  }
+
+  public void unlockWrite(String name) {
+    Entry entry = entries.get(name);
+    entry.lock.asWriteLock().unlock();
+    release(name);
+  }
+
+  /**
+   * @return true if the file is being written, e.g. an upload in progress
+   */
+  public boolean isWriteLocked(String name) {
+    Entry entry = entries.get(name);
+    return entry != null && entry.lock.isWriteLocked();
+  }
+
+  // the number of names with an entry, someone holds or waits for their lock
+  /*package*/int size() {
+    return entries.size();
+  }
+
+  private Entry acquire(String name) {
+    return entries.compute(
+      name,
+      (key, entry) -> {
+        if (entry == null) entry = new Entry();
+        entry.users++;
+        return entry;
+      }
+    );
+  }
+
+  private void release(String name) {
+    entries.computeIfPresent(name, (key, entry) -> --entry.users == 0 ? null : entry);
+  }
+}
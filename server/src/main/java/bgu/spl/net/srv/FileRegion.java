@@ -0,0 +1,84 @@
+package bgu.spl.net.srv;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A header followed by a part of a file. The file part is written to the
+ * socket with FileChannel.transferTo, so its bytes never pass through the heap.
+ *
+ * The region holds a reference to its file until it is released, whoever
+ * takes it off the write queue, written or not, must release it.
+ */
+public class FileRegion {
+
+  private final ByteBuffer header;
+  private final SharedFile file;
+  private long position;
+  private final long end;
+  private final long size;
+  private final AtomicBoolean released = new AtomicBoolean();
+
+  public FileRegion(
+    byte[] header,
+    SharedFile file,
+    long position,
+    long count
+  ) {
+    this.header = ByteBuffer.wrap(header);
+    this.file = file.retain();
+    this.position = position;
+    this.end = position + count;
+    this.size = header.length + count;
+  }
+
+  /**
+   * Transfers as much of the region as the target accepts.
+   * @return true once the whole region was written, false if the target is full
+   * @throws EOFException if the file got shorter than the region, the header
+   * already announced its length so the connection can't go on
+   */
+  public boolean transferTo(WritableByteChannel target) throws IOException {
+    target.write(header);
+    if (header.hasRemaining()) {
+      return false;
+    }
+    while (position < end) {
+      long transferred = file.channel().transferTo(position, end - position, target);
+      if (transferred <= 0) {
+        if (position >= file.size()) {
+          throw new EOFException("The file was cut short while it was sent");
+        }
+        return false;
+      }
+      position += transferred;
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of bytes not written yet
+   */
+  public long remaining() {
+    return header.remaining() + end - position;
+  }
+
+  /**
+   * @return the number of bytes the region had when it was created
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Gives back the region's reference to its file, only the first call counts.
+   */
+  public void release() {
+    if (released.compareAndSet(false, true)) {
+      file.release();
+    }
+  }
+}
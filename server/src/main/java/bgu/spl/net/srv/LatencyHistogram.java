@@ -0,0 +1,90 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in buckets that grow exponentially, each power of two
+ * split in 8, so a percentile is within 12.5% of the recorded value. The
+ * same idea as HdrHistogram, with a fixed size: recording allocates nothing
+ * and takes no lock, so it can stay on in the hot path.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  public void record(long nanos) {
+    nanos = Math.max(0, nanos);
+    buckets.incrementAndGet(index(nanos));
+    count.increment();
+    sum.add(nanos);
+    max.accumulate(nanos);
+  }
+
+  /** records the time since start, a System.nanoTime() */
+  public void recordSince(long start) {
+    record(System.nanoTime() - start);
+  }
+
+  public long count() {
+    return count.sum();
+  }
+
+  public long meanNanos() {
+    long n = count.sum();
+    return n == 0 ? 0 : sum.sum() / n;
+  }
+
+  public long maxNanos() {
+    return max.get();
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the upper bound of the bucket holding the percentile, 0 if nothing
+   * was recorded
+   */
+  public long percentileNanos(double percentile) {
+    long total = count.sum();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < buckets.length(); i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) {
+        return Math.min(lowest(i + 1) - 1, maxNanos());
+      }
+    }
+    return maxNanos();
+  }
+
+  // values under 8 have a bucket each, then 8 buckets per power of two
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  // the smallest value that goes to bucket index
+  static long lowest(int index) {
+    int row = index >>> SUB_BITS;
+    int sub = index & (SUB_BUCKETS - 1);
+    if (row == 0) {
+      return sub;
+    }
+    int exponent = row + SUB_BITS - 1;
+    return (1L << exponent) | ((long) sub << (exponent - SUB_BITS));
+  }
+}
@@ -0,0 +1,288 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.BidiMessagingProtocol;
+import bgu.spl.net.api.MessageEncoderDecoder;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
+
+  private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
+  private static final int MAX_GATHER = 64; // packets per write call
+  private static final long HIGH_WATER_MARK = 1 << 20;
+  private static final long LOW_WATER_MARK = HIGH_WATER_MARK / 2;
+  private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+
+  private final BidiMessagingProtocol<T> protocol;
+  private final MessageEncoderDecoder<T> encdec;
+  // holds ByteBuffers, ByteBuffer[]s (a header and its payload) and FileRegions
+  // in the order they were sent
+  private final Queue<Object> writeQueue = new ConcurrentLinkedQueue<>();
+  private final AtomicLong queuedBytes = new AtomicLong();
+  // set while the client reads too slowly, the selector stops reading its requests
+  private volatile boolean readPaused;
+  private volatile long lastReadNanos = System.nanoTime();
+  private volatile long lastWriteNanos = System.nanoTime();
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+  private final SocketChannel chan;
+  private final Reactor<T> reactor;
+  private int connectionId;
+  private ConnectionsImpl<T> connections;
+
+  public NonBlockingConnectionHandler(
+    MessageEncoderDecoder<T> reader,
+    BidiMessagingProtocol<T> protocol,
+    SocketChannel chan,
+    Reactor<T> reactor
+  ) {
+    this.chan = chan;
+    this.encdec = reader;
+    this.protocol = protocol;
+    this.reactor = reactor;
+  }
+
+  public Runnable continueRead() {
+    ByteBuffer buf = leaseBuffer();
+
+    boolean success = false;
+    try {
+      int read = chan.read(buf);
+      success = read != -1;
+      if (success) {
+        lastReadNanos = System.nanoTime();
+        connections.bytesIn.add(read);
+      }
+    } catch (IOException ex) {
+      EventLog.get().error(connectionId, "Connection failed", ex);
+    }
+
+    if (success) {
+      buf.flip();
+      return () -> {
+        try {
+          while (!protocol.shouldTerminate() && buf.hasRemaining()) {
+            T nextMessage = encdec.decodeNext(buf);
+            if (nextMessage != null) {
+              protocol.process(nextMessage);
+              encdec.release(nextMessage);
+            }
+          }
+        } finally {
+          releaseBuffer(buf);
+        }
+        if (protocol.shouldTerminate()) {
+          // let the selector thread flush the pending replies and then close
+          reactor.updateInterestedOps(
+            chan,
+            SelectionKey.OP_READ | SelectionKey.OP_WRITE
+          );
+        } else if (isBackpressured()) {
+          readPaused = true;
+          reactor.updateInterestedOps(chan, interestOps());
+        }
+      };
+    } else {
+      releaseBuffer(buf);
+      close();
+      return null;
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      chan.close();
+    } catch (IOException ex) {
+      EventLog.get().error(connectionId, "Close failed", ex);
+    }
+    if (connections != null) connections.disconnect(connectionId);
+    discardQueued();
+    // after the messages already queued for processing
+    if (closed.compareAndSet(false, true)) reactor.submit(this, protocol::connectionClosed);
+  }
+
+  // drops what is left in the queue of a closed connection, so the files of
+  // the queued regions get closed
+  private void discardQueued() {
+    Object next;
+    while ((next = writeQueue.poll()) != null) {
+      if (next instanceof FileRegion) ((FileRegion) next).release();
+    }
+    queuedBytes.set(0);
+  }
+
+  public boolean isClosed() {
+    return !chan.isOpen();
+  }
+
+  public void continueWrite() {
+    try {
+      while (!writeQueue.isEmpty()) {
+        Object top = writeQueue.peek();
+        if (top instanceof FileRegion) {
+          FileRegion region = (FileRegion) top;
+          long remaining = region.remaining();
+          boolean complete = region.transferTo(chan);
+          if (region.remaining() < remaining) {
+            lastWriteNanos = System.nanoTime();
+          }
+          if (!complete) {
+            return;
+          }
+          writeQueue.poll(); // close may have emptied the queue meanwhile
+          region.release();
+          queuedBytes.addAndGet(-region.size());
+          connections.bytesOut.add(region.size());
+        } else if (!writeGathered()) {
+          return;
+        }
+      }
+    } catch (IOException ex) {
+      EventLog.get().error(connectionId, "Connection failed", ex);
+      close();
+      return;
+    } finally {
+      if (readPaused && queuedBytes.get() <= LOW_WATER_MARK) {
+        readPaused = false;
+      }
+    }
+
+    if (writeQueue.isEmpty()) {
+      if (protocol.shouldTerminate()) close(); else reactor.updateInterestedOps(
+        chan,
+        interestOps() & ~SelectionKey.OP_WRITE
+      );
+    }
+  }
+
+  // writes the packets at the head of the queue with one gathering write,
+  // returns false if the socket took only part of them
+  private boolean writeGathered() throws IOException {
+    int count = 0;
+    for (Object next : writeQueue) {
+      if (next instanceof ByteBuffer && count < MAX_GATHER) {
+        gather[count++] = (ByteBuffer) next;
+      } else if (
+        next instanceof ByteBuffer[] &&
+        count + ((ByteBuffer[]) next).length <= MAX_GATHER
+      ) {
+        for (ByteBuffer buf : (ByteBuffer[]) next) gather[count++] = buf;
+      } else {
+        break;
+      }
+    }
+    if (chan.write(gather, 0, count) > 0) {
+      lastWriteNanos = System.nanoTime();
+    }
+    boolean complete = true;
+    int i = 0;
+    while (i < count && complete) {
+      Object top = writeQueue.peek();
+      int parts = top instanceof ByteBuffer[] ? ((ByteBuffer[]) top).length : 1;
+      long size = 0;
+      for (int j = i; j < i + parts; j++) {
+        complete &= !gather[j].hasRemaining();
+        size += gather[j].limit(); // queued buffers start at position 0
+      }
+      if (complete) {
+        writeQueue.poll();
+        queuedBytes.addAndGet(-size);
+        connections.bytesOut.add(size);
+      }
+      i += parts;
+    }
+    Arrays.fill(gather, 0, count, null);
+    return complete;
+  }
+
+  private int interestOps() {
+    return (readPaused ? 0 : SelectionKey.OP_READ) | SelectionKey.OP_WRITE;
+  }
+
+  @Override
+  public void send(T msg) {
+    if (isClosed()) return;
+    ByteBuffer buf = ByteBuffer.wrap(encdec.encode(msg));
+    enqueue(buf, buf.remaining());
+  }
+
+  @Override
+  public void sendFile(T header, SharedFile file, long position, long count) {
+    if (isClosed()) return;
+    FileRegion region = new FileRegion(encdec.encode(header), file, position, count);
+    enqueue(region, region.size());
+  }
+
+  @Override
+  public void sendBuffer(T header, ByteBuffer payload) {
+    if (isClosed()) return;
+    ByteBuffer[] packet = { ByteBuffer.wrap(encdec.encode(header)), payload.slice() };
+    enqueue(packet, packet[0].remaining() + packet[1].remaining());
+  }
+
+  private void enqueue(Object item, long size) {
+    queuedBytes.addAndGet(size);
+    writeQueue.add(item);
+    // close may have discarded the queue meanwhile
+    if (isClosed()) {
+      discardQueued();
+      return;
+    }
+    reactor.updateInterestedOps(chan, interestOps());
+  }
+
+  @Override
+  public boolean isBackpressured() {
+    return queuedBytes.get() > HIGH_WATER_MARK;
+  }
+
+  @Override
+  public long lastReadNanos() {
+    return lastReadNanos;
+  }
+
+  @Override
+  public long lastWriteNanos() {
+    return lastWriteNanos;
+  }
+
+  // a pool worker must not wait, the task goes back to the pool later
+  @Override
+  public boolean schedule(Runnable task, long delayMillis) {
+    reactor.submitLater(this, task, delayMillis);
+    return true;
+  }
+
+  @Override
+  public boolean isTransferring() {
+    return protocol.isTransferring();
+  }
+
+  public void start(int connectionIdVal, ConnectionsImpl<T> connectionsVal) {
+    connectionId = connectionIdVal;
+    connections = connectionsVal;
+    protocol.start(connectionIdVal, connectionsVal);
+  }
+
+  private static ByteBuffer leaseBuffer() {
+    ByteBuffer buff = BUFFER_POOL.poll();
+    if (buff == null) {
+      return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
+    }
+
+    buff.clear();
+    return buff;
+  }
+
+  private static void releaseBuffer(ByteBuffer buff) {
+    BUFFER_POOL.add(buff);
+  }
+}
@@ -0,0 +1,171 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.BidiMessagingProtocol;
+import bgu.spl.net.api.MessageEncoderDecoder;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+public class Reactor<T> implements Server<T> {
+
+  private final int port;
+  private final Supplier<BidiMessagingProtocol<T>> protocolFactory;
+  private final Supplier<MessageEncoderDecoder<T>> readerFactory;
+  private final ActorThreadPool pool;
+  private final ConnectionsImpl<T> connections;
+  private Selector selector;
+  int counter = 0;
+
+  private Thread selectorThread;
+  private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+
+  public Reactor(
+    int numThreads,
+    int port,
+    Supplier<BidiMessagingProtocol<T>> protocolFactory,
+    Supplier<MessageEncoderDecoder<T>> readerFactory,
+    ConnectionsImpl<T> connections
+  ) {
+    this.pool = new ActorThreadPool(numThreads);
+    this.port = port;
+    this.protocolFactory = protocolFactory;
+    this.readerFactory = readerFactory;
+    this.connections = connections;
+  }
+
+  @Override
+  public void serve() {
+    selectorThread = Thread.currentThread();
+    try (
+      Selector selector = Selector.open();
+      ServerSocketChannel serverSock = ServerSocketChannel.open()
+    ) {
+      this.selector = selector; //just to be able to close
+
+      serverSock.bind(new InetSocketAddress(port));
+      serverSock.configureBlocking(false);
+      serverSock.register(selector, SelectionKey.OP_ACCEPT);
+      System.out.println("Server started");
+
+      while (!Thread.currentThread().isInterrupted()) {
+        selector.select();
+        runSelectionThreadTasks();
+
+        for (SelectionKey key : selector.selectedKeys()) {
+          if (!key.isValid()) {
+            continue;
+          } else if (key.isAcceptable()) {
+            handleAccept(serverSock, selector);
+          } else {
+            handleReadWrite(key);
+          }
+        }
+
+        selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
+      }
+    } catch (ClosedSelectorException ex) {
+      //do nothing - server was requested to be closed
+    } catch (IOException ex) {
+      //this is an error
+      EventLog.get().error(-1, "Reactor failed", ex);
+    }
+
+    System.out.println("server closed!!!");
+    pool.shutdown();
+  }
+
+  /*package*/void updateInterestedOps(SocketChannel chan, int ops) {
+    final SelectionKey key = chan.keyFor(selector);
+    if (key == null) return;
+    if (Thread.currentThread() == selectorThread) {
+      if (key.isValid()) key.interestOps(ops);
+    } else {
+      selectorTasks.add(() -> {
+        if (key.isValid()) key.interestOps(ops);
+      });
+      selector.wakeup();
+    }
+  }
+
+  // runs task on the pool after the tasks already submitted for handler
+  /*package*/void submit(NonBlockingConnectionHandler<T> handler, Runnable task) {
+    pool.submit(handler, task);
+  }
+
+  // the same once delayMillis passed
+  /*package*/void submitLater(NonBlockingConnectionHandler<T> handler, Runnable task, long delayMillis) {
+    pool.submitLater(handler, task, delayMillis);
+  }
+
+  private void handleAccept(ServerSocketChannel serverChan, Selector selector)
+    throws IOException {
+    SocketChannel clientChan = serverChan.accept();
+    if (clientChan == null) return;
+    if (!connections.admission.tryAcquireConnection()) {
+      // the selector thread must not wait for a slot, turn the client away now
+      reject(clientChan);
+      return;
+    }
+    clientChan.configureBlocking(false);
+    clientChan.socket().setTcpNoDelay(true);
+    final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
+      readerFactory.get(),
+      protocolFactory.get(),
+      clientChan,
+      this
+    );
+    connections.connect(counter, handler);
+    handler.start(counter, connections);
+    counter++;
+    clientChan.register(selector, SelectionKey.OP_READ, handler);
+  }
+
+  private void reject(SocketChannel clientChan) {
+    EventLog log = EventLog.get();
+    if (log.isEnabled(EventLog.Level.WARN)) {
+      log.warn(-1, null, "Connection rejected", connections.admission.toString());
+    }
+    try (SocketChannel rejected = clientChan) {
+      T busy = connections.admission.busyMessage();
+      if (busy != null) {
+        ByteBuffer buf = ByteBuffer.wrap(readerFactory.get().encode(busy));
+        while (buf.hasRemaining()) rejected.write(buf);
+      }
+      rejected.shutdownOutput();
+    } catch (IOException e) {}
+  }
+
+  private void handleReadWrite(SelectionKey key) {
+    @SuppressWarnings("unchecked")
+    NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
+
+    if (key.isReadable()) {
+      Runnable task = handler.continueRead();
+      if (task != null) {
+        pool.submit(handler, task);
+      }
+    }
+
+    if (key.isValid() && key.isWritable()) {
+      handler.continueWrite();
+    }
+  }
+
+  private void runSelectionThreadTasks() {
+    while (!selectorTasks.isEmpty()) {
+      selectorTasks.remove().run();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    selector.close();
+  }
+}
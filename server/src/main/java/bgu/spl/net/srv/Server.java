@@ -38,4 +38,57 @@ public interface Server<T> extends Closeable {
       }
     };
   }
+
+  /**
+   *This function returns a new instance of a thread per client pattern server
+   * that runs every connection handler on its own virtual thread
+   * @param port The port for the server socket
+   * @param protocolFactory A factory that creats new MessagingProtocols
+   * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+   * @param <T> The Message Object for the protocol
+   * @return A new virtual thread per client server
+   */
+  public static <T> Server<T> virtualThreadPerClient(
+    int port,
+    Supplier<BidiMessagingProtocol<T>> protocolFactory,
+    Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+    ConnectionsImpl<T> connections
+  ) {
+    return new BaseServer<T>(
+      port,
+      protocolFactory,
+      encoderDecoderFactory,
+      connections
+    ) {
+      @Override
+      protected void execute(BlockingConnectionHandler<T> handler) {
+        Thread.ofVirtual().start(handler);
+      }
+    };
+  }
+
+  /**
+   * This function returns a new instance of a reactor pattern server
+   * @param nthreads Number of threads available for protocol processing
+   * @param port The port for the server socket
+   * @param protocolFactory A factory that creats new MessagingProtocols
+   * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+   * @param <T> The Message Object for the protocol
+   * @return A new reactor server
+   */
+  public static <T> Server<T> reactor(
+    int nthreads,
+    int port,
+    Supplier<BidiMessagingProtocol<T>> protocolFactory,
+    Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+    ConnectionsImpl<T> connections
+  ) {
+    return new Reactor<T>(
+      nthreads,
+      port,
+      protocolFactory,
+      encoderDecoderFactory,
+      connections
+    );
+  }
 }
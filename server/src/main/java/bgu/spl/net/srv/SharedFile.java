@@ -0,0 +1,48 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A file open for reading, closed when its last user releases it. The
+ * transfer that opened it holds one reference and every FileRegion queued for
+ * sending holds another, so a transfer can end while its last blocks are
+ * still waiting for the socket.
+ */
+public class SharedFile {
+
+  private final FileChannel channel;
+  private final AtomicInteger references = new AtomicInteger(1);
+
+  /**
+   * @param channel the caller holds the first reference
+   */
+  public SharedFile(FileChannel channel) {
+    this.channel = channel;
+  }
+
+  public FileChannel channel() {
+    return channel;
+  }
+
+  public long size() throws IOException {
+    return channel.size();
+  }
+
+  /**
+   * Takes another reference, the caller must hold one already.
+   */
+  public SharedFile retain() {
+    references.incrementAndGet();
+    return this;
+  }
+
+  public void release() {
+    if (references.decrementAndGet() == 0) {
+      try {
+        channel.close();
+      } catch (IOException e) {}
+    }
+  }
+}
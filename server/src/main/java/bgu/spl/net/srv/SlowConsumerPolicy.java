@@ -0,0 +1,12 @@
+package bgu.spl.net.srv;
+
+/**
+ * What a broadcast does with a subscriber whose outbound queue is over its
+ * high-water mark.
+ */
+public enum SlowConsumerPolicy {
+  /** the subscriber misses this broadcast */
+  DROP,
+  /** the subscriber is disconnected */
+  DISCONNECT,
+}
@@ -0,0 +1,147 @@
+package bgu.spl.net.impl.tftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HexFormat;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BlobStoreTest {
+
+  @TempDir
+  Path dir;
+
+  private Path files;
+  private Path blobsDir;
+  private BlobStore blobs;
+
+  @BeforeEach
+  void open() throws IOException {
+    files = Files.createDirectories(dir.resolve("Flies"));
+    blobsDir = dir.resolve("blobs");
+    blobs = new BlobStore(files, blobsDir);
+  }
+
+  private static String hash(String content) {
+    return HexFormat.of().formatHex(BlobStore.newDigest().digest(content.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  // uploads content as name, the way a WRQ publishes it
+  private void upload(String name, String content) throws IOException {
+    Path temp = Files.writeString(Files.createTempFile(dir, "upload", ".part"), content);
+    blobs.add(name, blobs.store(temp, hash(content)));
+  }
+
+  @Test
+  void sameContentIsStoredOnce() throws IOException {
+    upload("a", "hello");
+    upload("b", "hello");
+    upload("c", "other");
+    assertEquals(2, blobs.blobs());
+    assertEquals(1, blobs.deduplicated());
+    assertEquals(hash("hello"), blobs.hashOf("b"));
+    assertEquals("hello", Files.readString(files.resolve("b")));
+    assertTrue(Files.exists(blobsDir.resolve(hash("hello"))));
+  }
+
+  @Test
+  void blobIsDeletedWithItsLastName() throws IOException {
+    upload("a", "hello");
+    upload("b", "hello");
+    assertTrue(blobs.delete("a"));
+    assertTrue(blobs.contains(hash("hello")));
+    assertTrue(blobs.delete("b"));
+    assertFalse(blobs.contains(hash("hello")));
+    assertFalse(Files.exists(blobsDir.resolve(hash("hello"))));
+    assertEquals(0, blobs.blobs());
+    assertFalse(blobs.delete("b"));
+  }
+
+  @Test
+  void shareAddsANameWithoutAnUpload() throws IOException {
+    upload("a", "hello");
+    blobs.add("b", blobs.share(hash("hello")));
+    assertEquals("hello", Files.readString(files.resolve("b")));
+    assertNull(blobs.share(hash("missing")));
+    blobs.delete("a");
+    assertTrue(blobs.contains(hash("hello")));
+  }
+
+  @Test
+  void discardedContentDropsItsReference() throws IOException {
+    upload("a", "hello");
+    blobs.discard(blobs.share(hash("hello")));
+    Path temp = Files.writeString(Files.createTempFile(dir, "upload", ".part"), "new");
+    blobs.discard(blobs.store(temp, hash("new")));
+    assertFalse(blobs.contains(hash("new")));
+    assertFalse(Files.exists(blobsDir.resolve(hash("new"))));
+    blobs.delete("a");
+    assertFalse(blobs.contains(hash("hello")));
+  }
+
+  @Test
+  void journalIsReplayedAtStart() throws IOException {
+    upload("a", "hello");
+    upload("b", "hello");
+    upload("c", "other");
+    blobs.delete("a");
+    // no close, as after a crash: the changes are only in the journal
+    assertTrue(Files.size(blobsDir.resolve("names.log")) > 0);
+    BlobStore reopened = new BlobStore(files, blobsDir);
+    assertNull(reopened.hashOf("a"));
+    assertEquals(hash("hello"), reopened.hashOf("b"));
+    assertEquals(hash("other"), reopened.hashOf("c"));
+    assertEquals(2, reopened.blobs());
+    // loading compacts the journal into the table
+    assertEquals(0, Files.size(blobsDir.resolve("names.log")));
+    reopened.delete("b");
+    assertFalse(reopened.contains(hash("hello")));
+  }
+
+  @Test
+  void recordCutShortByACrashIsIgnored() throws IOException {
+    upload("a", "hello");
+    Files.write(blobsDir.resolve("names.log"), new byte[] { 1, 0, 9, 'b' }, StandardOpenOption.APPEND);
+    BlobStore reopened = new BlobStore(files, blobsDir);
+    assertEquals(hash("hello"), reopened.hashOf("a"));
+    assertNull(reopened.hashOf("b"));
+  }
+
+  @Test
+  void namesWhoseFileIsGoneAreDroppedWithTheirBlob() throws IOException {
+    upload("a", "hello");
+    upload("b", "other");
+    Files.delete(files.resolve("b"));
+    BlobStore reopened = new BlobStore(files, blobsDir);
+    assertNull(reopened.hashOf("b"));
+    assertEquals(1, reopened.blobs());
+    assertFalse(Files.exists(blobsDir.resolve(hash("other"))));
+  }
+
+  @Test
+  void journalIsCompactedOnceItOutgrowsTheTable() throws IOException {
+    upload("kept", "kept");
+    // 1100 records for a table of one name
+    for (int i = 0; i < 550; i++) {
+      upload("churn", "content " + i);
+      blobs.delete("churn");
+    }
+    // a record is under 80 bytes, the first 1025 went to the table
+    assertTrue(Files.size(blobsDir.resolve("names.log")) < 100 * 80);
+    upload("last", "last");
+    BlobStore reopened = new BlobStore(files, blobsDir);
+    assertEquals(2, reopened.blobs());
+    assertEquals(hash("kept"), reopened.hashOf("kept"));
+    assertEquals(hash("last"), reopened.hashOf("last"));
+    assertNull(reopened.hashOf("churn"));
+  }
+}
@@ -0,0 +1,122 @@
+package bgu.spl.net.impl.tftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.Deflater;
+import org.junit.jupiter.api.Test;
+
+class CompressionTest {
+
+  private static Compression.Source source(byte[] file) {
+    return (dst, position) -> {
+      if (position >= file.length) {
+        return -1;
+      }
+      int n = (int) Math.min(dst.remaining(), file.length - position);
+      dst.put(file, (int) position, n);
+      return n;
+    };
+  }
+
+  // the DATA payloads of the whole file, as a RRQ sends them
+  private static byte[] compress(byte[] file, int blockSize) throws IOException {
+    Compression.Encoder encoder = new Compression.Encoder(Compression.DEFLATE, source(file), 0, file.length, blockSize);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      for (int block = 1; ; block++) {
+        ByteBuffer payload = encoder.block(block);
+        out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        encoder.acknowledged(block);
+        if (payload.remaining() < blockSize) {
+          return out.toByteArray();
+        }
+      }
+    } finally {
+      encoder.end();
+    }
+  }
+
+  private static void decompress(Compression.Decoder decoder, byte[] stream, int blockSize, ByteArrayOutputStream out)
+      throws IOException {
+    for (int offset = 0; offset < stream.length; offset += blockSize) {
+      decoder.write(stream, offset, Math.min(blockSize, stream.length - offset), out);
+    }
+  }
+
+  @Test
+  void chooseTakesTheFirstSupportedCodec() {
+    assertEquals(Compression.DEFLATE, Compression.choose("zstd, Deflate"));
+    assertNull(Compression.choose("zstd,lz4"));
+  }
+
+  @Test
+  void decoderRestoresWhatTheEncoderSent() throws IOException {
+    byte[] file = "the same line again and again\n".repeat(2000).getBytes();
+    byte[] stream = compress(file, 512);
+    assertTrue(stream.length < file.length / 10);
+    Compression.Decoder decoder = new Compression.Decoder(Compression.DEFLATE, 0);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    decompress(decoder, stream, 512, out);
+    assertTrue(decoder.finished());
+    assertArrayEquals(file, out.toByteArray());
+    assertEquals(file.length, decoder.fileBytes());
+    decoder.end();
+  }
+
+  @Test
+  void randomBytesAreNotWorthCompressing() throws IOException {
+    byte[] file = new byte[100_000];
+    new Random(1).nextBytes(file);
+    assertFalse(Compression.worthCompressing(source(file), 0, file.length));
+    assertTrue(Compression.worthCompressing(source(new byte[100_000]), 0, 100_000));
+  }
+
+  @Test
+  void bombStopsAtTheLimit() throws IOException {
+    // 64 MB of zeros deflate to a few KB
+    byte[] zeros = new byte[1 << 20];
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int i = 0; i < 64; i++) {
+      deflater.setInput(zeros);
+      while (!deflater.needsInput()) {
+        compressed.write(buffer, 0, deflater.deflate(buffer));
+      }
+    }
+    deflater.finish();
+    while (!deflater.finished()) {
+      compressed.write(buffer, 0, deflater.deflate(buffer));
+    }
+    deflater.end();
+    byte[] stream = compressed.toByteArray();
+
+    long limit = 1 << 20;
+    Compression.Decoder decoder = new Compression.Decoder(Compression.DEFLATE, limit);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThrows(Compression.LimitExceededException.class, () -> decompress(decoder, stream, 512, out));
+    assertTrue(out.size() <= limit, "wrote " + out.size());
+    decoder.end();
+  }
+
+  @Test
+  void streamAtTheLimitPasses() throws IOException {
+    byte[] file = new byte[200_000];
+    byte[] stream = compress(file, 1024);
+    Compression.Decoder decoder = new Compression.Decoder(Compression.DEFLATE, file.length);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    decompress(decoder, stream, 1024, out);
+    assertTrue(decoder.finished());
+    assertEquals(file.length, out.size());
+    decoder.end();
+  }
+}
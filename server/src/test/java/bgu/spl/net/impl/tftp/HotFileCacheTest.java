@@ -0,0 +1,99 @@
+package bgu.spl.net.impl.tftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HotFileCacheTest {
+
+  @TempDir
+  Path dir;
+
+  // 8 files of 1000 bytes fit, a file may take an eighth of the cache
+  private final HotFileCache cache = new HotFileCache(8000);
+
+  private Path file(String name, int size) throws IOException {
+    byte[] content = new byte[size];
+    content[0] = (byte) name.charAt(0);
+    return Files.write(dir.resolve(name), content);
+  }
+
+  @Test
+  void hitReturnsTheSameContent() throws IOException {
+    Path a = file("a", 100);
+    byte[] first = cache.get("a", a);
+    assertArrayEquals(Files.readAllBytes(a), first);
+    assertSame(first, cache.get("a", a));
+    assertEquals(1, cache.misses());
+    assertEquals(1, cache.hits());
+    assertEquals(100, cache.bytes());
+  }
+
+  @Test
+  void leastRecentlyReadIsEvictedFirst() throws IOException {
+    byte[][] contents = new byte[8][];
+    for (int i = 0; i < 8; i++) {
+      String name = String.valueOf((char) ('a' + i));
+      contents[i] = cache.get(name, file(name, 1000));
+    }
+    assertEquals(8000, cache.bytes());
+    assertEquals(0, cache.evictions());
+    // a is read again, so b is the least recent
+    assertSame(contents[0], cache.get("a", dir.resolve("a")));
+    cache.get("i", file("i", 1000));
+    assertEquals(1, cache.evictions());
+    assertEquals(8000, cache.bytes());
+    assertSame(contents[0], cache.get("a", dir.resolve("a")));
+    assertSame(contents[2], cache.get("c", dir.resolve("c")));
+    long misses = cache.misses();
+    assertNotSame(contents[1], cache.get("b", dir.resolve("b")));
+    assertEquals(misses + 1, cache.misses());
+    // b came back in place of d, the least recent after c was read
+    assertEquals(2, cache.evictions());
+    assertNotSame(contents[3], cache.get("d", dir.resolve("d")));
+  }
+
+  @Test
+  void fileOverAnEighthIsBypassed() throws IOException {
+    assertNull(cache.get("big", file("big", 1001)));
+    assertEquals(1, cache.bypassed());
+    assertEquals(0, cache.misses());
+    assertEquals(0, cache.bytes());
+  }
+
+  @Test
+  void invalidateDropsTheEntry() throws IOException {
+    Path a = file("a", 500);
+    byte[] first = cache.get("a", a);
+    cache.invalidate("a");
+    assertEquals(0, cache.bytes());
+    assertNotSame(first, cache.get("a", a));
+    assertEquals(2, cache.misses());
+    assertEquals(0, cache.evictions());
+  }
+
+  @Test
+  void fileChangedOnDiskIsReadAgain() throws IOException {
+    Path a = file("a", 500);
+    cache.get("a", a);
+    Files.write(a, new byte[600]);
+    assertEquals(600, cache.get("a", a).length);
+    assertEquals(600, cache.bytes());
+    assertEquals(0, cache.hits());
+  }
+
+  @Test
+  void zeroSizeDisablesTheCache() throws IOException {
+    HotFileCache disabled = new HotFileCache(0);
+    assertNull(disabled.get("a", file("a", 10)));
+    assertEquals(0, disabled.misses());
+  }
+}
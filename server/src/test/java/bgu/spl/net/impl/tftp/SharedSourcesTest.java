@@ -0,0 +1,31 @@
+package bgu.spl.net.impl.tftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * The client and the server speak the protocol through copies of the same
+ * files, a change to one copy must be made to the other.
+ */
+class SharedSourcesTest {
+
+  private static final Path SERVER = Path.of("src/main/java/bgu/spl/net/impl/tftp");
+  private static final Path CLIENT = Path.of("../client/src/main/java/bgu/spl/net/impl/tftp");
+
+  @ParameterizedTest
+  @ValueSource(strings = { "TftpPacket.java", "TftpOptions.java", "Compression.java", "TftpEncoderDecoder.java" })
+  void clientCopyIsIdentical(String file) throws IOException {
+    // the server may be built on its own, without the client next to it
+    assumeTrue(Files.isDirectory(CLIENT), "no client sources next to the server");
+    assertEquals(
+        Files.readString(SERVER.resolve(file)),
+        Files.readString(CLIENT.resolve(file)),
+        file + " differs between the client and the server");
+  }
+}
@@ -0,0 +1,113 @@
+package bgu.spl.net.impl.tftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StagingAreaTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void nameIsReservedUntilTheUploadEnds() throws IOException {
+    StagingArea staging = new StagingArea(dir.resolve("staging"));
+    Path temp = staging.begin("a");
+    assertNotNull(temp);
+    assertTrue(Files.exists(temp));
+    assertNull(staging.begin("a"));
+    assertFalse(staging.reserve("a"));
+    assertTrue(staging.reserve("b"));
+    staging.abort("a", temp);
+    assertFalse(Files.exists(temp));
+    assertNotNull(staging.begin("a"));
+    staging.release("b");
+    assertTrue(staging.reserve("b"));
+  }
+
+  @Test
+  void leftoverTempFilesAreDeletedAtStart() throws IOException {
+    Path stagingDir = dir.resolve("staging");
+    Path temp = new StagingArea(stagingDir).begin("a");
+    new StagingArea(stagingDir);
+    assertFalse(Files.exists(temp));
+  }
+
+  @Test
+  void publishAndDiscardEndTheReservation() throws IOException {
+    Path files = Files.createDirectories(dir.resolve("Flies"));
+    BlobStore blobs = new BlobStore(files, dir.resolve("blobs"));
+    StagingArea staging = new StagingArea(dir.resolve("staging"));
+    Path temp = staging.begin("a");
+    Files.writeString(temp, "content");
+    BlobStore.Content content = blobs.store(temp, "11".repeat(32));
+    staging.publish("a", content, blobs);
+    assertTrue(Files.exists(files.resolve("a")));
+    assertTrue(staging.reserve("a"));
+
+    Path other = staging.begin("b");
+    Files.writeString(other, "other");
+    staging.discard("b", blobs.store(other, "22".repeat(32)), blobs);
+    assertTrue(staging.reserve("b"));
+    assertFalse(blobs.contains("22".repeat(32)));
+  }
+
+  @Test
+  void suspendedUploadIsResumedWithItsToken() throws IOException {
+    StagingArea staging = new StagingArea(dir.resolve("staging"), 60_000);
+    assertTrue(staging.resumable());
+    String token = staging.newToken();
+    Path temp = staging.begin("a");
+    Files.writeString(temp, "part");
+    staging.suspend(token, "a", temp);
+    // still reserved while it is kept
+    assertNull(staging.begin("a"));
+    assertNull(staging.resume(staging.newToken(), "a"));
+    assertNull(staging.resume(token, "b"));
+    assertEquals(temp, staging.resume(token, "a"));
+    assertEquals("part", Files.readString(temp));
+    // taken once only
+    assertNull(staging.resume(token, "a"));
+  }
+
+  @Test
+  void expiredUploadIsDropped() throws IOException, InterruptedException {
+    StagingArea staging = new StagingArea(dir.resolve("staging"), 1);
+    String token = staging.newToken();
+    Path temp = staging.begin("a");
+    staging.suspend(token, "a", temp);
+    Thread.sleep(20);
+    assertNull(staging.resume(token, "a"));
+    assertFalse(Files.exists(temp));
+    assertNotNull(staging.begin("a"));
+  }
+
+  @Test
+  void withoutRetentionSuspendAborts() throws IOException {
+    StagingArea staging = new StagingArea(dir.resolve("staging"));
+    assertFalse(staging.resumable());
+    String token = staging.newToken();
+    Path temp = staging.begin("a");
+    staging.suspend(token, "a", temp);
+    assertFalse(Files.exists(temp));
+    assertNull(staging.resume(token, "a"));
+    assertNotNull(staging.begin("a"));
+  }
+
+  @Test
+  void tokensAreRandom() throws IOException {
+    StagingArea staging = new StagingArea(dir.resolve("staging"));
+    String token = staging.newToken();
+    assertEquals(24, token.length());
+    assertNotEquals(token, staging.newToken());
+  }
+}
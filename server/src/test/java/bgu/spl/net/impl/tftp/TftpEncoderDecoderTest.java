@@ -0,0 +1,168 @@
+package bgu.spl.net.impl.tftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class TftpEncoderDecoderTest {
+
+  private final TftpEncoderDecoder decoder = new TftpEncoderDecoder();
+
+  private static byte[] data(int block, int size) {
+    byte[] packet = new byte[TftpPacket.DATA_HEADER_LENGTH + size];
+    TftpPacket.writeDataHeader(packet, size, block);
+    for (int i = 0; i < size; i++) {
+      packet[TftpPacket.DATA_HEADER_LENGTH + i] = (byte) (i * 7 + block);
+    }
+    return packet;
+  }
+
+  private static byte[] concat(byte[]... packets) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] packet : packets) {
+      out.writeBytes(packet);
+    }
+    return out.toByteArray();
+  }
+
+  // what the decoder makes of the whole stream, fed in chunks of chunk bytes
+  private List<byte[]> decodeAll(byte[] stream, int chunk) {
+    List<byte[]> packets = new ArrayList<>();
+    for (int from = 0; from < stream.length; from += chunk) {
+      ByteBuffer in = ByteBuffer.wrap(stream, from, Math.min(chunk, stream.length - from));
+      while (in.hasRemaining()) {
+        byte[] packet = decoder.decodeNext(in);
+        if (packet != null) {
+          packets.add(packet.clone());
+        }
+      }
+    }
+    return packets;
+  }
+
+  // the decoder drops the 0 that ends a terminated packet or an options list
+  private static byte[] withoutTerminator(byte[] packet) {
+    return Arrays.copyOf(packet, packet.length - 1);
+  }
+
+  @Test
+  void decodesEveryKindOfPacketWhateverTheChunks() {
+    Map<String, String> options = new LinkedHashMap<>();
+    options.put(TftpOptions.BLOCK_SIZE, "1024");
+    options.put(TftpOptions.WINDOW_SIZE, "4");
+    byte[] rrq = TftpPacket.request(TftpPacket.RRQ, "a.txt");
+    byte[] wrq = TftpPacket.request(TftpPacket.WRQ, "b.txt");
+    byte[] data = data(3, 100);
+    byte[] empty = data(4, 0);
+    byte[] ack = TftpPacket.ack(258);
+    byte[] error = TftpPacket.error(1, "File not found");
+    byte[] dirq = TftpPacket.opcode(TftpPacket.DIRQ);
+    byte[] login = TftpPacket.request(TftpPacket.LOGRQ, "user");
+    byte[] bcast = TftpPacket.bcast(true, "c.txt");
+    byte[] disc = TftpPacket.opcode(TftpPacket.DISC);
+    byte[] oack = TftpOptions.packet(options);
+    byte[] stream = concat(rrq, wrq, data, empty, ack, error, dirq, login, bcast, oack, disc);
+    byte[][] expected = {
+      withoutTerminator(rrq),
+      withoutTerminator(wrq),
+      data,
+      empty,
+      ack,
+      withoutTerminator(error),
+      dirq,
+      withoutTerminator(login),
+      withoutTerminator(bcast),
+      withoutTerminator(oack),
+      disc,
+    };
+    for (int chunk : new int[] { 1, 2, 3, 7, 64, stream.length }) {
+      List<byte[]> packets = decodeAll(stream, chunk);
+      assertEquals(expected.length, packets.size(), "packets in chunks of " + chunk);
+      for (int i = 0; i < expected.length; i++) {
+        assertArrayEquals(expected[i], packets.get(i), "packet " + i + " in chunks of " + chunk);
+      }
+    }
+  }
+
+  @Test
+  void decodeNextByteMatchesDecodeNext() {
+    byte[] stream = concat(TftpPacket.request(TftpPacket.LOGRQ, "user"), data(1, 512), TftpPacket.ack(1));
+    List<byte[]> packets = new ArrayList<>();
+    for (byte b : stream) {
+      byte[] packet = decoder.decodeNextByte(b);
+      if (packet != null) {
+        packets.add(packet);
+      }
+    }
+    assertEquals(3, packets.size());
+    assertArrayEquals(data(1, 512), packets.get(1));
+    assertArrayEquals(TftpPacket.ack(1), packets.get(2));
+  }
+
+  @Test
+  void decodeNextStopsAfterOnePacket() {
+    ByteBuffer in = ByteBuffer.wrap(concat(TftpPacket.ack(1), TftpPacket.ack(2)));
+    assertArrayEquals(TftpPacket.ack(1), decoder.decodeNext(in));
+    assertEquals(4, in.position());
+    assertArrayEquals(TftpPacket.ack(2), decoder.decodeNext(in));
+    assertNull(decoder.decodeNext(in));
+  }
+
+  @Test
+  void unknownOpcodeIsPassedOnAsTwoBytes() {
+    ByteBuffer in = ByteBuffer.wrap(concat(new byte[] { 0, 42 }, TftpPacket.ack(7)));
+    assertArrayEquals(new byte[] { 0, 42 }, decoder.decodeNext(in));
+    assertArrayEquals(TftpPacket.ack(7), decoder.decodeNext(in));
+  }
+
+  @Test
+  void tooLongTerminatedPacketIsSkipped() {
+    byte[] name = new byte[(1 << 16) + 10];
+    Arrays.fill(name, (byte) 'a');
+    byte[] huge = concat(new byte[] { 0, TftpPacket.RRQ }, name, new byte[] { 0 });
+    List<byte[]> packets = decodeAll(concat(huge, TftpPacket.ack(5)), 4096);
+    assertEquals(1, packets.size());
+    assertArrayEquals(TftpPacket.ack(5), packets.get(0));
+  }
+
+  @Test
+  void releasedPacketIsReusedForTheSameLength() {
+    byte[] first = decoder.decodeNext(ByteBuffer.wrap(data(1, 512)));
+    decoder.release(first);
+    byte[] second = decoder.decodeNext(ByteBuffer.wrap(data(2, 512)));
+    assertSame(first, second);
+    assertArrayEquals(data(2, 512), second);
+    // a packet of another length doesn't take it
+    decoder.release(second);
+    byte[] ack = decoder.decodeNext(ByteBuffer.wrap(TftpPacket.ack(2)));
+    assertNotSame(second, ack);
+    assertSame(second, decoder.decodeNext(ByteBuffer.wrap(data(3, 512))));
+  }
+
+  @Test
+  void releaseKeepsTheNewestWhenTheSlotsAreFull() {
+    byte[][] released = new byte[5][];
+    for (int i = 0; i < released.length; i++) {
+      released[i] = decoder.decodeNext(ByteBuffer.wrap(data(1, 10 + i)));
+    }
+    for (byte[] packet : released) {
+      decoder.release(packet);
+    }
+    // the oldest, of 10 bytes of payload, was dropped for the newest
+    assertNotSame(released[0], decoder.decodeNext(ByteBuffer.wrap(data(2, 10))));
+    for (int i = 1; i < released.length; i++) {
+      assertSame(released[i], decoder.decodeNext(ByteBuffer.wrap(data(2, 10 + i))));
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package bgu.spl.net.impl.tftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class TftpProtocolTest {
+
+  @Test
+  void blockNumberIsTheWireNumberBelow65536() {
+    assertEquals(1, TftpProtocol.blockNumber(1, 1));
+    assertEquals(65535, TftpProtocol.blockNumber(65535, 65535));
+    // a block behind or ahead of the one expected, e.g. a resend
+    assertEquals(9, TftpProtocol.blockNumber(9, 10));
+    assertEquals(11, TftpProtocol.blockNumber(11, 10));
+  }
+
+  @Test
+  void blockNumberRollsOverAfter65535() {
+    assertEquals(65536, TftpProtocol.blockNumber(0, 65536));
+    assertEquals(65537, TftpProtocol.blockNumber(1, 65536));
+    assertEquals(3 * 65536 + 5, TftpProtocol.blockNumber(5, 3 * 65536 + 2));
+    // the block before the rollover, while the next one is expected
+    assertEquals(65535, TftpProtocol.blockNumber(65535, 65536));
+    assertEquals(2 * 65536 - 1, TftpProtocol.blockNumber(65535, 2 * 65536 + 3));
+  }
+
+  @Test
+  void blockNumberTakesTheClosestWithinHalfTheRange() {
+    int expected = 5 * 65536 + 100;
+    for (int delta = -32768; delta < 32768; delta += 97) {
+      int block = expected + delta;
+      assertEquals(block, TftpProtocol.blockNumber(block & 0xffff, expected), "delta " + delta);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class EventLogTest {
+
+  // holds the log's writer in its first write until released
+  private static class GatedStream extends OutputStream {
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch open = new CountDownLatch(1);
+
+    @Override
+    public synchronized void write(int b) {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      writing.countDown();
+      try {
+        open.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (this) {
+        bytes.write(b, off, len);
+      }
+    }
+
+    synchronized String[] lines() {
+      String text = bytes.toString(StandardCharsets.UTF_8);
+      return text.isEmpty() ? new String[0] : text.split("\n");
+    }
+  }
+
+  private static String[] awaitLines(GatedStream out, int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    String[] lines = out.lines();
+    while (lines.length < count && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+      lines = out.lines();
+    }
+    return lines;
+  }
+
+  @Test
+  void eventsBelowTheLevelAreSkipped() throws InterruptedException {
+    GatedStream out = new GatedStream();
+    out.open.countDown();
+    EventLog log = new EventLog(EventLog.Level.WARN, new PrintStream(out, true, StandardCharsets.UTF_8));
+    assertFalse(log.isEnabled(EventLog.Level.INFO));
+    log.info(1, "user", "skipped", null);
+    log.warn(1, "user", "kept", "a.txt");
+    String[] lines = awaitLines(out, 1);
+    assertEquals(1, lines.length);
+    assertTrue(lines[0].endsWith(" WARN [1 user] kept: a.txt"), lines[0]);
+    log.setLevel(EventLog.Level.DEBUG);
+    log.debug(-1, null, "now kept", null);
+    lines = awaitLines(out, 2);
+    assertTrue(lines[1].endsWith(" DEBUG now kept"), lines[1]);
+  }
+
+  @Test
+  void ringWrapsAroundAndDropsWhenFull() throws InterruptedException {
+    GatedStream out = new GatedStream();
+    EventLog log = new EventLog(EventLog.Level.INFO, new PrintStream(out, true, StandardCharsets.UTF_8));
+    log.info(-1, null, "first", null);
+    // the writer took the first event and is held in its write
+    assertTrue(out.writing.await(10, TimeUnit.SECONDS));
+    int overflow = 10;
+    for (int i = 0; i < EventLog.CAPACITY + overflow; i++) {
+      log.info(-1, null, "event", String.valueOf(i));
+    }
+    assertEquals(overflow, log.dropped());
+    out.open.countDown();
+    String[] lines = awaitLines(out, EventLog.CAPACITY + 1);
+    assertEquals(EventLog.CAPACITY + 1, lines.length);
+    // in order, the ones that didn't fit were dropped
+    for (int i = 0; i < EventLog.CAPACITY; i++) {
+      assertTrue(lines[i + 1].endsWith(" event: " + i), lines[i + 1]);
+    }
+    // the slots are used again once they were printed
+    log.info(-1, null, "after", null);
+    lines = awaitLines(out, EventLog.CAPACITY + 2);
+    assertTrue(lines[EventLog.CAPACITY + 1].endsWith(" INFO after"), lines[EventLog.CAPACITY + 1]);
+    assertEquals(overflow, log.dropped());
+  }
+}
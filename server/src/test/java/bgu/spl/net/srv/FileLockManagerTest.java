@@ -0,0 +1,111 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class FileLockManagerTest {
+
+  private final FileLockManager locks = new FileLockManager();
+
+  @Test
+  void readersShareAndKeepOutWriters() {
+    locks.lockRead("a");
+    assertTrue(locks.tryLockRead("a"));
+    assertFalse(locks.tryLockWrite("a"));
+    // another name doesn't wait for it
+    assertTrue(locks.tryLockWrite("b"));
+    locks.unlockWrite("b");
+    locks.unlockRead("a");
+    assertFalse(locks.tryLockWrite("a"));
+    locks.unlockRead("a");
+    assertTrue(locks.tryLockWrite("a"));
+    assertTrue(locks.isWriteLocked("a"));
+    assertFalse(locks.tryLockRead("a"));
+    locks.unlockWrite("a");
+    assertFalse(locks.isWriteLocked("a"));
+  }
+
+  @Test
+  void entryIsRemovedWithItsLastUser() {
+    locks.lockRead("a");
+    locks.lockRead("a");
+    assertEquals(1, locks.size());
+    locks.unlockRead("a");
+    assertEquals(1, locks.size());
+    locks.unlockRead("a");
+    assertEquals(0, locks.size());
+  }
+
+  @Test
+  void failedTriesLeaveNoEntry() {
+    assertTrue(locks.tryLockWrite("a"));
+    assertFalse(locks.tryLockWrite("a"));
+    assertFalse(locks.tryLockRead("a"));
+    assertFalse(locks.tryLockWrite("a", 10));
+    assertEquals(1, locks.size());
+    locks.unlockWrite("a");
+    assertEquals(0, locks.size());
+    assertFalse(locks.isWriteLocked("a"));
+  }
+
+  @Test
+  void tryLockWriteTimesOut() {
+    locks.lockRead("a");
+    long start = System.nanoTime();
+    assertFalse(locks.tryLockWrite("a", 50));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    locks.unlockRead("a");
+    assertEquals(0, locks.size());
+  }
+
+  @Test
+  void tryLockWriteGetsTheLockOnceTheReaderLeaves() throws InterruptedException {
+    locks.lockRead("a");
+    // unlocked by another thread, the locks aren't owned by one
+    Thread reader = new Thread(() -> {
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {}
+      locks.unlockRead("a");
+    });
+    reader.start();
+    assertTrue(locks.tryLockWrite("a", 5000));
+    reader.join();
+    assertEquals(1, locks.size());
+    locks.unlockWrite("a");
+    assertEquals(0, locks.size());
+  }
+
+  @Test
+  void interruptedTryLockWriteGivesUp() {
+    locks.lockRead("a");
+    Thread.currentThread().interrupt();
+    assertFalse(locks.tryLockWrite("a", 5000));
+    assertTrue(Thread.interrupted());
+    locks.unlockRead("a");
+    assertEquals(0, locks.size());
+  }
+
+  @Test
+  void lockReadWaitsForTheWriter() throws InterruptedException {
+    assertTrue(locks.tryLockWrite("a"));
+    CountDownLatch read = new CountDownLatch(1);
+    Thread reader = new Thread(() -> {
+      locks.lockRead("a");
+      read.countDown();
+      locks.unlockRead("a");
+    });
+    reader.start();
+    assertFalse(read.await(50, TimeUnit.MILLISECONDS));
+    locks.unlockWrite("a");
+    assertTrue(read.await(5, TimeUnit.SECONDS));
+    reader.join();
+    assertEquals(0, locks.size());
+    assertEquals(1, locks.waits.count());
+  }
+}
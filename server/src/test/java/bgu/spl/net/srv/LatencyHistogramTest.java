@@ -0,0 +1,71 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+  @Test
+  void smallValuesHaveABucketEach() {
+    for (int value = 0; value < 8; value++) {
+      assertEquals(value, LatencyHistogram.index(value));
+      assertEquals(value, LatencyHistogram.lowest(value));
+    }
+  }
+
+  @Test
+  void eachPowerOfTwoIsSplitInEight() {
+    assertEquals(8, LatencyHistogram.index(8));
+    assertEquals(15, LatencyHistogram.index(15));
+    assertEquals(16, LatencyHistogram.index(16));
+    assertEquals(16, LatencyHistogram.index(17));
+    assertEquals(17, LatencyHistogram.index(18));
+    assertEquals(23, LatencyHistogram.index(31));
+    assertEquals(24, LatencyHistogram.index(32));
+  }
+
+  @Test
+  void indexAndLowestAgree() {
+    // the largest value is in the last bucket, there is none after it
+    int last = LatencyHistogram.index(Long.MAX_VALUE);
+    assertTrue(LatencyHistogram.lowest(last) <= Long.MAX_VALUE);
+    long[] values = { 8, 9, 100, 1000, 123_456, 1_000_000_000L, 1L << 62 };
+    for (long value : values) {
+      int index = LatencyHistogram.index(value);
+      assertTrue(LatencyHistogram.lowest(index) <= value, "lowest of " + value);
+      assertTrue(LatencyHistogram.lowest(index + 1) > value, "next of " + value);
+    }
+    // every bucket starts where the previous one ends
+    for (int index = 0; index < last; index++) {
+      assertEquals(index, LatencyHistogram.index(LatencyHistogram.lowest(index)));
+      assertEquals(index, LatencyHistogram.index(LatencyHistogram.lowest(index + 1) - 1));
+    }
+  }
+
+  @Test
+  void bucketIsWithinAnEighthOfItsValues() {
+    for (long value = 8; value < 1L << 40; value = value * 3 + 1) {
+      int index = LatencyHistogram.index(value);
+      long width = LatencyHistogram.lowest(index + 1) - LatencyHistogram.lowest(index);
+      assertTrue(width * 8 <= LatencyHistogram.lowest(index), "width at " + value);
+    }
+  }
+
+  @Test
+  void percentilesAreBucketBounds() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.percentileNanos(50));
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(i * 1000L);
+    }
+    histogram.record(-5); // counted as 0
+    assertEquals(101, histogram.count());
+    assertEquals(100_000, histogram.maxNanos());
+    assertEquals(100_000, histogram.percentileNanos(100));
+    long median = histogram.percentileNanos(50);
+    assertTrue(median >= 50_000 && median <= 50_000 * 9 / 8, "median " + median);
+    assertEquals(0, histogram.percentileNanos(0.5));
+  }
+}